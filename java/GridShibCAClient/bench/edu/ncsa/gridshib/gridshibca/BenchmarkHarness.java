@@ -0,0 +1,184 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+BenchmarkHarness.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Minimal benchmark harness: runs each operation through untimed warmup
+ * iterations, samples the latency of measured iterations along with the
+ * bytes allocated per operation (where the JVM can report it), prints a
+ * table and writes the results as JSON.
+ *
+ * The JSON follows the layout of JMH's JSON result format (a list of
+ * benchmarks each with a "primaryMetric") so results can be tracked with
+ * the same tooling from release to release.
+ */
+public class BenchmarkHarness
+{
+    /**
+     * An operation to be benchmarked.
+     */
+    public interface Operation
+    {
+        void run() throws Exception;
+    }
+
+    // Untimed iterations per operation
+    private int warmupIterations;
+
+    // Timed iterations per operation
+    private int measurementIterations;
+
+    // Names and results of operations run so far
+    private List<String> names = new ArrayList<String>();
+    private List<LatencyStats> results = new ArrayList<LatencyStats>();
+    private List<Long> allocations = new ArrayList<Long>();
+
+    /**
+     * @param warmupIterations Untimed iterations per operation.
+     * @param measurementIterations Timed iterations per operation.
+     */
+    public BenchmarkHarness(int warmupIterations, int measurementIterations)
+    {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        System.out.println(LatencyStats.header() +
+                String.format(" %10s", "B/op") + "  (ms/op)");
+    }
+
+    /**
+     * Benchmark an operation and print its results.
+     * @param name Name of operation.
+     * @param op Operation to run.
+     * @return Latency statistics.
+     * @throws java.lang.Exception whatever the operation throws.
+     */
+    public LatencyStats measure(String name, Operation op)
+            throws Exception
+    {
+        for (int i = 0; i < this.warmupIterations; i++)
+        {
+            op.run();
+        }
+        LatencyStats stats = new LatencyStats(this.measurementIterations);
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < this.measurementIterations; i++)
+        {
+            long start = System.nanoTime();
+            op.run();
+            stats.record(start);
+        }
+        long allocatedPerOp = -1;
+        if (allocatedBefore != -1)
+        {
+            allocatedPerOp = (allocatedBytes() - allocatedBefore) /
+                    this.measurementIterations;
+        }
+        System.out.println(stats.toString(name) +
+                String.format(" %10d", allocatedPerOp));
+        this.names.add(name);
+        this.results.add(stats);
+        this.allocations.add(allocatedPerOp);
+        return stats;
+    }
+
+    /**
+     * @return Bytes allocated so far by the current thread, or -1 if the
+     * JVM doesn't support measuring it.
+     */
+    public static long allocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            com.sun.management.ThreadMXBean hotspotThreads =
+                    (com.sun.management.ThreadMXBean) threads;
+            if (hotspotThreads.isThreadAllocatedMemorySupported() &&
+                    hotspotThreads.isThreadAllocatedMemoryEnabled())
+            {
+                return hotspotThreads.getThreadAllocatedBytes(
+                        Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write all results so far as JSON.
+     * @param file File to write.
+     * @throws java.io.IOException
+     */
+    public void writeJSON(File file)
+            throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null)
+        {
+            parent.mkdirs();
+        }
+        FileWriter out = new FileWriter(file);
+        out.write("[\n");
+        for (int i = 0; i < this.results.size(); i++)
+        {
+            LatencyStats stats = this.results.get(i);
+            out.write("  {\n");
+            out.write("    \"benchmark\" : " + quote(this.names.get(i)) + ",\n");
+            out.write("    \"mode\" : \"sample\",\n");
+            out.write("    \"threads\" : 1,\n");
+            out.write("    \"forks\" : 1,\n");
+            out.write("    \"jdkVersion\" : " +
+                    quote(System.getProperty("java.version")) + ",\n");
+            out.write("    \"vmName\" : " +
+                    quote(System.getProperty("java.vm.name")) + ",\n");
+            out.write("    \"date\" : " + quote(new Date().toString()) + ",\n");
+            out.write("    \"warmupIterations\" : " + this.warmupIterations + ",\n");
+            out.write("    \"measurementIterations\" : " + stats.count() + ",\n");
+            out.write("    \"primaryMetric\" : {\n");
+            out.write("      \"score\" : " + stats.mean() + ",\n");
+            out.write("      \"scoreUnit\" : \"ms/op\",\n");
+            out.write("      \"scorePercentiles\" : {\n");
+            out.write("        \"0.0\" : " + stats.percentile(0) + ",\n");
+            out.write("        \"50.0\" : " + stats.percentile(50) + ",\n");
+            out.write("        \"90.0\" : " + stats.percentile(90) + ",\n");
+            out.write("        \"99.0\" : " + stats.percentile(99) + ",\n");
+            out.write("        \"100.0\" : " + stats.percentile(100) + "\n");
+            out.write("      }\n");
+            out.write("    },\n");
+            out.write("    \"secondaryMetrics\" : {\n");
+            if (this.allocations.get(i) != -1)
+            {
+                out.write("      \"gc.alloc.rate.norm\" : {\n");
+                out.write("        \"score\" : " + this.allocations.get(i) + ",\n");
+                out.write("        \"scoreUnit\" : \"B/op\"\n");
+                out.write("      }\n");
+            }
+            out.write("    }\n");
+            out.write((i < this.results.size() - 1) ? "  },\n" : "  }\n");
+        }
+        out.write("]\n");
+        out.close();
+        System.out.println("Results written to " + file);
+    }
+
+    /**
+     * @return s as a JSON string literal.
+     */
+    private static String quote(String s)
+    {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
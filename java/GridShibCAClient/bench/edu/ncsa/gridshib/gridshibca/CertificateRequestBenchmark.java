@@ -0,0 +1,111 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+CertificateRequestBenchmark.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+
+/**
+ * Compares latency and allocation per certificate request of building the
+ * request with BouncyCastle's PKCS10CertificationRequest against
+ * CertificateRequestBuilder.
+ *
+ * Usage: CertificateRequestBenchmark [results.json [iterations]]
+ */
+public class CertificateRequestBenchmark
+{
+    private static final String requestDN =
+        "CN=Credential Retriever, O=GridShib-CA, C=US";
+
+    // Untimed iterations per operation
+    private static final int warmupIterations = 200;
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        File resultsFile = new File("csr-results.json");
+        int iterations = 1000;
+        if (args.length > 0)
+        {
+            resultsFile = new File(args[0]);
+        }
+        if (args.length > 1)
+        {
+            iterations = Integer.parseInt(args[1]);
+        }
+
+        final CertificateRequestBuilder builder =
+            new CertificateRequestBuilder(requestDN);
+        BenchmarkHarness harness =
+            new BenchmarkHarness(warmupIterations, iterations);
+
+        String[] keyAlgs = { "RSA", "EC" };
+        int[] keySizes = { 2048, 256 };
+        final String[] sigAlgs = { "SHA256withRSA", "SHA256withECDSA" };
+        final String[] providers = { "SunRsaSign", "SunEC" };
+        for (int i = 0; i < keyAlgs.length; i++)
+        {
+            KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance(keyAlgs[i]);
+            keyGenerator.initialize(keySizes[i]);
+            final KeyPair keyPair = keyGenerator.genKeyPair();
+            final String sigAlg = sigAlgs[i];
+            final String provider = providers[i];
+            String suffix = "." + keyAlgs[i] + "-" + keySizes[i];
+
+            // RSA signatures are deterministic, so the two must agree
+            if ("RSA".equals(keyAlgs[i]) &&
+                !bouncyCastle(keyPair, sigAlg, provider).equals(
+                    builder.generatePEM(keyPair, sigAlg, provider)))
+            {
+                throw new IllegalStateException(
+                    "CertificateRequestBuilder output differs from BouncyCastle");
+            }
+
+            harness.measure("PKCS10CertificationRequest" + suffix,
+                new BenchmarkHarness.Operation()
+            {
+                public void run() throws Exception
+                {
+                    bouncyCastle(keyPair, sigAlg, provider);
+                }
+            });
+            harness.measure("CertificateRequestBuilder" + suffix,
+                new BenchmarkHarness.Operation()
+            {
+                public void run() throws Exception
+                {
+                    builder.generatePEM(keyPair, sigAlg, provider);
+                }
+            });
+        }
+
+        harness.writeJSON(resultsFile);
+    }
+
+    /**
+     * Build a request the way Credential used to.
+     */
+    private static String bouncyCastle(KeyPair keyPair, String sigAlg,
+                                       String provider)
+            throws Exception
+    {
+        PKCS10CertificationRequest pkcs10 =
+            new PKCS10CertificationRequest(sigAlg,
+                new X509Name(requestDN),
+                keyPair.getPublic(),
+                new DERSet(),
+                keyPair.getPrivate(),
+                provider);
+        return PEMEncoder.encodePKCS10CertificationRequest(pkcs10);
+    }
+}
@@ -0,0 +1,115 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+CredentialBenchmark.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+/**
+ * Benchmarks of the credential crypto path: key generation, certificate
+ * request signing, certificate parsing and writing credentials to disk.
+ *
+ * Usage: CredentialBenchmark [results.json [iterations]]
+ */
+public class CredentialBenchmark
+{
+    // Untimed iterations per operation
+    private static final int warmupIterations = 5;
+
+    private static final char[] passphrase = "benchmark-passphrase".toCharArray();
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        File resultsFile = new File("bench-results.json");
+        int iterations = 50;
+        if (args.length > 0)
+        {
+            resultsFile = new File(args[0]);
+        }
+        if (args.length > 1)
+        {
+            iterations = Integer.parseInt(args[1]);
+        }
+        Credential.setKeyPairEngine(new SimpleKeyPairEngine());
+
+        BenchmarkHarness harness =
+            new BenchmarkHarness(warmupIterations, iterations);
+
+        harness.measure("genKeyPair.RSA-2048", new BenchmarkHarness.Operation()
+        {
+            public void run() throws Exception
+            {
+                new Credential().genKeyPair(2048, "RSA");
+            }
+        });
+        harness.measure("genKeyPair.EC-256", new BenchmarkHarness.Operation()
+        {
+            public void run() throws Exception
+            {
+                new Credential().genKeyPair(256, "EC");
+            }
+        });
+
+        String[] keyAlgs = { "RSA", "EC" };
+        int[] keySizes = { 2048, 256 };
+        for (int i = 0; i < keyAlgs.length; i++)
+        {
+            String suffix = "." + keyAlgs[i] + "-" + keySizes[i];
+            final Credential cred = TestCredential.create(keyAlgs[i], keySizes[i]);
+            final File outFile = File.createTempFile("GridShibCABenchmark", ".out");
+            outFile.deleteOnExit();
+            final byte[] certPEM =
+                PEMEncoder.x509CertToPEM(cred.getCertificate()).getBytes();
+
+            harness.measure("generatePEMCertificateRequest" + suffix,
+                new BenchmarkHarness.Operation()
+            {
+                public void run() throws Exception
+                {
+                    cred.createPEMCertificateRequest();
+                }
+            });
+            harness.measure("readX509CertFromPEM" + suffix,
+                new BenchmarkHarness.Operation()
+            {
+                public void run() throws Exception
+                {
+                    cred.readX509CertFromPEM(new ByteArrayInputStream(certPEM));
+                }
+            });
+            harness.measure("writeToFile" + suffix,
+                new BenchmarkHarness.Operation()
+            {
+                public void run() throws Exception
+                {
+                    cred.writeToFile(outFile.getPath());
+                }
+            });
+            harness.measure("writeToFile.passphrase" + suffix,
+                new BenchmarkHarness.Operation()
+            {
+                public void run() throws Exception
+                {
+                    cred.writeToFile(outFile.getPath(), passphrase);
+                }
+            });
+            harness.measure("writeToPKCS12File" + suffix,
+                new BenchmarkHarness.Operation()
+            {
+                public void run() throws Exception
+                {
+                    cred.writeToPKCS12File(outFile.getPath(), passphrase);
+                }
+            });
+        }
+
+        harness.writeJSON(resultsFile);
+    }
+}
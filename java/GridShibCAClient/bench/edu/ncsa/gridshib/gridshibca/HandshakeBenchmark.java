@@ -0,0 +1,290 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+HandshakeBenchmark.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Measures connecting to a local TLS stand-in for the GridShib-CA server
+ * the way the client does (TCP connect through CountingSSLSocketFactory,
+ * TLS layered on top and handshaken once, as HttpsURLConnection does, a
+ * request sent in two writes and a small response read) with different
+ * SocketTuning settings: TLS 1.3 against TLS 1.2, the JVM's cipher suite
+ * order against SocketTuning.FAST, and TCP_NODELAY on and off, each with
+ * full and with resumed handshakes. Requests through HttpsURLConnection
+ * itself are measured for each protocol too.
+ *
+ * The stand-in refuses client-initiated renegotiation, as servers built
+ * on OpenSSL 3 do by default, so a second handshake on a connection (say
+ * the factory and HttpsURLConnection both starting one) fails the
+ * benchmark rather than quietly costing a round trip. It runs in this JVM
+ * on the loopback interface, so results show CPU cost and round trips
+ * rather than real network latency.
+ *
+ * Usage: HandshakeBenchmark [results.json [iterations]]
+ */
+public class HandshakeBenchmark
+{
+    // Untimed iterations per operation
+    private static final int warmupIterations = 20;
+
+    private static final char[] password = "benchmark".toCharArray();
+
+    // Request headers, written in two parts as HttpURLConnection might
+    private static final byte[] requestLine =
+        "GET / HTTP/1.0\r\n".getBytes();
+    private static final byte[] requestHeaders =
+        "Host: localhost\r\nUser-Agent: HandshakeBenchmark\r\n\r\n".getBytes();
+
+    private static final byte[] response =
+        ("HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n" +
+         "Content-Length: 3\r\n\r\nOK\n").getBytes();
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        File resultsFile = new File("handshake-results.json");
+        int iterations = 200;
+        if (args.length > 0)
+        {
+            resultsFile = new File(args[0]);
+        }
+        if (args.length > 1)
+        {
+            iterations = Integer.parseInt(args[1]);
+        }
+
+        // Must be set before JSSE reads it, when first used
+        System.setProperty("jdk.tls.rejectClientInitiatedRenegotiation", "true");
+
+        // Server credential, trusted by the client as its own CA, as the
+        // client trusts the GridShib-CA server through its trust store.
+        Credential cred = TestCredential.create("EC", 256, "CN=localhost");
+        KeyStore serverStore = KeyStore.getInstance("pkcs12");
+        serverStore.load(null, password);
+        serverStore.setKeyEntry("server", cred.getKeyPair().getPrivate(),
+            password, new Certificate[] { cred.getCertificate() });
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+            KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(serverStore, password);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+        KeyStore trustStore = KeyStore.getInstance("pkcs12");
+        trustStore.load(null, password);
+        trustStore.setCertificateEntry("ca", cred.getCertificate());
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(
+            TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagerFactory.getTrustManagers(), null);
+
+        final SSLServerSocket server = (SSLServerSocket)
+            serverContext.getServerSocketFactory().createServerSocket(
+                0, 50, InetAddress.getLoopbackAddress());
+        Thread serverThread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                serve(server);
+            }
+        }, "HandshakeBenchmark server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        InetSocketAddress address = new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), server.getLocalPort());
+
+        BenchmarkHarness harness =
+            new BenchmarkHarness(warmupIterations, iterations);
+        String[] protocols = { "TLSv1.3", "TLSv1.2" };
+        String[] cipherSuites = { SocketTuning.DEFAULT, SocketTuning.FAST };
+        boolean[] noDelays = { true, false };
+        for (int p = 0; p < protocols.length; p++)
+        {
+            for (int c = 0; c < cipherSuites.length; c++)
+            {
+                for (int n = 0; n < noDelays.length; n++)
+                {
+                    SocketTuning tuning = new SocketTuning(noDelays[n], 0, 0,
+                        protocols[p], cipherSuites[c]);
+                    String label = protocols[p] + "." + cipherSuites[c] +
+                        (noDelays[n] ? ".nodelay" : ".nagle");
+                    measure(harness, clientContext, tuning, address,
+                            "full." + label, true);
+                    measure(harness, clientContext, tuning, address,
+                            "resumed." + label, false);
+                }
+            }
+        }
+
+        for (int p = 0; p < protocols.length; p++)
+        {
+            measureHttps(harness, clientContext,
+                new SocketTuning(true, 0, 0, protocols[p], SocketTuning.FAST),
+                new URL("https://localhost:" + address.getPort() + "/"),
+                "https." + protocols[p]);
+        }
+
+        server.close();
+        harness.writeJSON(resultsFile);
+    }
+
+    /**
+     * Measure connections with the given tuning.
+     * @param full True to force a full handshake every time by
+     * invalidating each session, false to let sessions be resumed.
+     */
+    private static void measure(BenchmarkHarness harness,
+                                SSLContext clientContext,
+                                SocketTuning tuning,
+                                final InetSocketAddress address,
+                                String name,
+                                final boolean full)
+            throws Exception
+    {
+        final CountingSSLSocketFactory factory = new CountingSSLSocketFactory(
+            clientContext.getSocketFactory(), tuning);
+        harness.measure(name, new BenchmarkHarness.Operation()
+        {
+            public void run() throws Exception
+            {
+                request(factory, address, full);
+            }
+        });
+        System.out.println("    " + factory.getFullHandshakeCount() + " full, " +
+            factory.getResumedHandshakeCount() + " resumed handshakes");
+    }
+
+    /**
+     * Measure requests made with HttpsURLConnection, as the client makes
+     * them, on a new connection each (the stand-in closes it) resuming
+     * the session.
+     */
+    private static void measureHttps(BenchmarkHarness harness,
+                                     SSLContext clientContext,
+                                     SocketTuning tuning,
+                                     final URL url,
+                                     String name)
+            throws Exception
+    {
+        final CountingSSLSocketFactory factory = new CountingSSLSocketFactory(
+            clientContext.getSocketFactory(), tuning);
+        harness.measure(name, new BenchmarkHarness.Operation()
+        {
+            public void run() throws Exception
+            {
+                HttpsURLConnection connection =
+                    (HttpsURLConnection) url.openConnection();
+                connection.setSSLSocketFactory(factory);
+                connection.connect();
+                factory.connected(null);
+                InputStream in = connection.getInputStream();
+                byte[] buffer = new byte[1024];
+                while (in.read(buffer) != -1)
+                {
+                    // Read to end of response
+                }
+                in.close();
+            }
+        });
+        System.out.println("    " + factory.getFullHandshakeCount() + " full, " +
+            factory.getResumedHandshakeCount() + " resumed handshakes");
+    }
+
+    /**
+     * Make one request to the stand-in on a new connection.
+     */
+    private static void request(CountingSSLSocketFactory factory,
+                                InetSocketAddress address,
+                                boolean full)
+            throws IOException
+    {
+        Socket plain = factory.createSocket();
+        plain.connect(address, 10000);
+        SSLSocket socket = (SSLSocket) factory.createSocket(plain,
+            "localhost", address.getPort(), true);
+        try
+        {
+            // As HttpsURLConnection does
+            socket.startHandshake();
+            factory.connected(null);
+            OutputStream out = socket.getOutputStream();
+            out.write(requestLine);
+            out.write(requestHeaders);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1)
+            {
+                // Read to end of response
+            }
+            if (full)
+            {
+                socket.getSession().invalidate();
+            }
+        } finally
+        {
+            socket.close();
+        }
+    }
+
+    /**
+     * Accept connections, answering each request with a fixed response.
+     */
+    private static void serve(SSLServerSocket server)
+    {
+        while (!server.isClosed())
+        {
+            try
+            {
+                Socket socket = server.accept();
+                try
+                {
+                    socket.setTcpNoDelay(true);
+                    InputStream in = socket.getInputStream();
+                    // Read up to the blank line ending the headers
+                    int matched = 0;
+                    int b;
+                    while ((matched < 4) && ((b = in.read()) != -1))
+                    {
+                        matched = (b == "\r\n\r\n".charAt(matched)) ?
+                            matched + 1 : ((b == '\r') ? 1 : 0);
+                    }
+                    OutputStream out = socket.getOutputStream();
+                    out.write(response);
+                    out.flush();
+                } finally
+                {
+                    socket.close();
+                }
+            } catch (IOException e)
+            {
+                if (!server.isClosed())
+                {
+                    System.err.println("Stand-in server: " + e);
+                }
+            }
+        }
+    }
+}
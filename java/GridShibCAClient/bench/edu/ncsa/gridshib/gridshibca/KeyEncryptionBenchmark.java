@@ -0,0 +1,111 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+KeyEncryptionBenchmark.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.File;
+
+/**
+ * Measures what encrypting a private key costs with the legacy scheme and
+ * with the AES256 scheme at a range of PBKDF2 iteration counts, both as a
+ * credential file and as a PKCS12 file. Each PBKDF2 iteration costs an
+ * offline attacker the same as it costs us, so this shows how high the
+ * count can go before users notice.
+ *
+ * Usage: KeyEncryptionBenchmark [results.json [iterations [counts]]]
+ * where counts is a comma-separated list of PBKDF2 iteration counts.
+ */
+public class KeyEncryptionBenchmark
+{
+    // Untimed iterations per operation
+    private static final int warmupIterations = 3;
+
+    private static final char[] passphrase = "benchmark passphrase".toCharArray();
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        File resultsFile = new File("key-encryption-results.json");
+        int iterations = 20;
+        String counts = "1000,10000,100000,310000";
+        if (args.length > 0)
+        {
+            resultsFile = new File(args[0]);
+        }
+        if (args.length > 1)
+        {
+            iterations = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2)
+        {
+            counts = args[2];
+        }
+
+        Credential rsaCred = TestCredential.create("RSA", 2048);
+        Credential ecCred = TestCredential.create("EC", 256);
+        File pemFile = File.createTempFile("GridShibCABenchmark", ".pem");
+        pemFile.deleteOnExit();
+        File pkcs12File = File.createTempFile("GridShibCABenchmark", ".p12");
+        pkcs12File.deleteOnExit();
+
+        BenchmarkHarness harness =
+            new BenchmarkHarness(warmupIterations, iterations);
+
+        Credential.setKeyEncryptor(new PrivateKeyEncryptor());
+        measure(harness, rsaCred, ecCred, pemFile, pkcs12File, "legacy");
+        String[] countList = counts.split(",");
+        for (int i = 0; i < countList.length; i++)
+        {
+            int count = Integer.parseInt(countList[i].trim());
+            Credential.setKeyEncryptor(
+                new PrivateKeyEncryptor(PrivateKeyEncryptor.AES256, count));
+            measure(harness, rsaCred, ecCred, pemFile, pkcs12File,
+                    "AES256-" + count);
+        }
+
+        harness.writeJSON(resultsFile);
+    }
+
+    /**
+     * Measure writing encrypted PEM files for RSA and EC keys and a PKCS12
+     * file with the current key encryptor.
+     */
+    private static void measure(BenchmarkHarness harness,
+                                final Credential rsaCred,
+                                final Credential ecCred,
+                                final File pemFile,
+                                final File pkcs12File,
+                                String label)
+            throws Exception
+    {
+        harness.measure("writeToFile.RSA-2048." + label,
+            new BenchmarkHarness.Operation()
+        {
+            public void run() throws Exception
+            {
+                rsaCred.writeToFile(pemFile.getPath(), passphrase);
+            }
+        });
+        harness.measure("writeToFile.EC-256." + label,
+            new BenchmarkHarness.Operation()
+        {
+            public void run() throws Exception
+            {
+                ecCred.writeToFile(pemFile.getPath(), passphrase);
+            }
+        });
+        harness.measure("writeToPKCS12File.RSA-2048." + label,
+            new BenchmarkHarness.Operation()
+        {
+            public void run() throws Exception
+            {
+                rsaCred.writeToPKCS12File(pkcs12File.getPath(), passphrase);
+            }
+        });
+    }
+}
@@ -0,0 +1,68 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+KeyGenBenchmark.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+/**
+ * Benchmark of end-to-end key generation plus certificate request
+ * signing, i.e. everything the client does before it can talk to the
+ * GridShib-CA, for each supported key type.
+ *
+ * Usage: KeyGenBenchmark [iterations]
+ */
+public class KeyGenBenchmark
+{
+    // Key types to compare: algorithm and size
+    private static final String[] keyAlgs = { "RSA", "EC", "EC" };
+    private static final int[] keySizes = { 2048, 256, 384 };
+
+    // Untimed iterations to let the JIT settle
+    private static final int warmupIterations = 3;
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        int iterations = 20;
+        if (args.length > 0)
+        {
+            iterations = Integer.parseInt(args[0]);
+        }
+        // Measure a single generator; see KeyGenRaceBenchmark for racing
+        Credential.setKeyPairEngine(new SimpleKeyPairEngine());
+
+        System.out.println("Key generation + CSR latency, " + iterations +
+                " iterations (milliseconds)");
+        System.out.println(LatencyStats.header());
+        for (int i = 0; i < keyAlgs.length; i++)
+        {
+            for (int w = 0; w < warmupIterations; w++)
+            {
+                generate(keyAlgs[i], keySizes[i]);
+            }
+            LatencyStats stats = new LatencyStats(iterations);
+            for (int n = 0; n < iterations; n++)
+            {
+                long start = System.nanoTime();
+                generate(keyAlgs[i], keySizes[i]);
+                stats.record(start);
+            }
+            System.out.println(stats.toString(keyAlgs[i] + "-" + keySizes[i]));
+        }
+    }
+
+    /**
+     * Generate one key pair and certificate request.
+     */
+    private static void generate(String keyAlg, int keySize)
+            throws Exception
+    {
+        Credential cred = new Credential();
+        cred.genKeyPair(keySize, keyAlg);
+        cred.generatePEMCertificateRequest();
+    }
+}
@@ -0,0 +1,83 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+KeyGenRaceBenchmark.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Benchmark of the RSA key generation latency distribution with a single
+ * generator and with racing generators (RacingKeyPairEngine). Racing is
+ * meant to pull the tail (p90/p99) in towards the median. What that costs
+ * is reported as CPU time per key, which for racing includes the losing
+ * generators left running after each race.
+ *
+ * Usage: KeyGenRaceBenchmark [iterations [racers]]
+ */
+public class KeyGenRaceBenchmark
+{
+    private static final int keySize = 2048;
+
+    // Untimed iterations to let the JIT settle
+    private static final int warmupIterations = 3;
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        int iterations = 50;
+        int racers = 0;
+        if (args.length > 0)
+        {
+            iterations = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1)
+        {
+            racers = Integer.parseInt(args[1]);
+        }
+        RacingKeyPairEngine racingEngine = new RacingKeyPairEngine(racers);
+
+        System.out.println("RSA-" + keySize + " key generation latency, " +
+                iterations + " iterations, " +
+                Runtime.getRuntime().availableProcessors() +
+                " processors (milliseconds)");
+        System.out.println(LatencyStats.header());
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long cpuStart = threadBean.getCurrentThreadCpuTime();
+        run("single", new SimpleKeyPairEngine(), iterations);
+        long singleCpu = threadBean.getCurrentThreadCpuTime() - cpuStart;
+        run("racing x" + racingEngine.getRacers(), racingEngine, iterations);
+        // Let the last losers finish so their CPU time is counted
+        racingEngine.shutdown();
+        racingEngine.awaitTermination(60 * 1000);
+        int keys = warmupIterations + iterations;
+        System.out.println("CPU per key (ms): single " +
+                (singleCpu / keys / 1000000) + ", racing " +
+                (racingEngine.getGeneratorCpuNanos() / keys / 1000000));
+    }
+
+    /**
+     * Time key generation with the given engine and print the distribution.
+     */
+    private static void run(String name, KeyPairEngine engine, int iterations)
+            throws Exception
+    {
+        for (int w = 0; w < warmupIterations; w++)
+        {
+            engine.genKeyPair(keySize, "RSA");
+        }
+        LatencyStats stats = new LatencyStats(iterations);
+        for (int n = 0; n < iterations; n++)
+        {
+            long start = System.nanoTime();
+            engine.genKeyPair(keySize, "RSA");
+            stats.record(start);
+        }
+        System.out.println(stats.toString(name));
+    }
+}
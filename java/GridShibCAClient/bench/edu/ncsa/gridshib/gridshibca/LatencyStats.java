@@ -0,0 +1,96 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+LatencyStats.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.util.Arrays;
+
+/**
+ * Latency samples from a benchmark and their summary statistics.
+ */
+public class LatencyStats
+{
+    // Samples in milliseconds, sorted on demand
+    private double[] millis;
+    private int count = 0;
+    private boolean sorted = true;
+
+    /**
+     * @param capacity Number of samples to be recorded.
+     */
+    public LatencyStats(int capacity)
+    {
+        this.millis = new double[capacity];
+    }
+
+    /**
+     * Record one sample.
+     * @param startNanos Value of System.nanoTime() when the operation began.
+     */
+    public void record(long startNanos)
+    {
+        this.millis[this.count++] = (System.nanoTime() - startNanos) / 1.0e6;
+        this.sorted = false;
+    }
+
+    /**
+     * @return Number of samples recorded.
+     */
+    public int count()
+    {
+        return this.count;
+    }
+
+    /**
+     * @return Mean of samples in milliseconds.
+     */
+    public double mean()
+    {
+        double total = 0;
+        for (int i = 0; i < this.count; i++)
+        {
+            total += this.millis[i];
+        }
+        return total / this.count;
+    }
+
+    /**
+     * @param p Percentile, between 0 and 100.
+     * @return Given percentile of samples in milliseconds (nearest rank).
+     */
+    public double percentile(double p)
+    {
+        if (!this.sorted)
+        {
+            Arrays.sort(this.millis, 0, this.count);
+            this.sorted = true;
+        }
+        int rank = (int) Math.ceil((p / 100.0) * this.count);
+        return this.millis[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * @return Column headings matching toString().
+     */
+    public static String header()
+    {
+        return String.format("%-40s %8s %8s %8s %8s %8s",
+                "", "mean", "p50", "p90", "p99", "max");
+    }
+
+    /**
+     * @param name Name to label the row with.
+     * @return One-line summary in milliseconds.
+     */
+    public String toString(String name)
+    {
+        return String.format("%-40s %8.2f %8.2f %8.2f %8.2f %8.2f",
+                name, mean(), percentile(50), percentile(90),
+                percentile(99), percentile(100));
+    }
+}
@@ -0,0 +1,119 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+TestCredential.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.File;
+import java.io.FileWriter;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Date;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+/**
+ * Self-signed credentials for benchmarks, standing in for ones issued by
+ * a GridShib-CA.
+ */
+public class TestCredential
+{
+    private static final String defaultSubject =
+        "CN=Benchmark User, O=GridShib-CA, C=US";
+
+    /**
+     * Create a self-signed credential and write it, in the same format as
+     * Credential.writeToFile(), to a temporary file.
+     * @param keyAlg Key algorithm ("RSA" or "EC").
+     * @param keySize Key size.
+     * @return Temporary file, deleted on exit.
+     * @throws java.lang.Exception
+     */
+    public static File createFile(String keyAlg, int keySize)
+            throws Exception
+    {
+        return createFile(keyAlg, keySize, defaultSubject);
+    }
+
+    /**
+     * Create a self-signed credential with the given subject and write it
+     * to a temporary file.
+     * @param keyAlg Key algorithm ("RSA" or "EC").
+     * @param keySize Key size.
+     * @param subject Subject (and issuer) DN, e.g. "CN=localhost".
+     * @return Temporary file, deleted on exit.
+     * @throws java.lang.Exception
+     */
+    public static File createFile(String keyAlg, int keySize, String subject)
+            throws Exception
+    {
+        KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance(keyAlg);
+        keyGenerator.initialize(keySize);
+        KeyPair keyPair = keyGenerator.genKeyPair();
+
+        X509V3CertificateGenerator certGenerator =
+            new X509V3CertificateGenerator();
+        long now = System.currentTimeMillis();
+        certGenerator.setSerialNumber(BigInteger.valueOf(now));
+        certGenerator.setIssuerDN(new X509Name(subject));
+        certGenerator.setSubjectDN(new X509Name(subject));
+        certGenerator.setNotBefore(new Date(now - 60 * 1000));
+        certGenerator.setNotAfter(new Date(now + 12 * 3600 * 1000));
+        certGenerator.setPublicKey(keyPair.getPublic());
+        certGenerator.setSignatureAlgorithm(
+            "RSA".equals(keyAlg) ? "SHA256withRSA" : "SHA256withECDSA");
+        X509Certificate cert = certGenerator.generate(keyPair.getPrivate(),
+            keyGenerator.getProvider().getName());
+
+        File file = File.createTempFile("GridShibCABenchmark", ".pem");
+        file.deleteOnExit();
+        FileWriter out = new FileWriter(file);
+        out.write(PEMEncoder.x509CertToPEM(cert));
+        if (keyPair.getPrivate() instanceof RSAPrivateKey)
+        {
+            out.write(PEMEncoder.encodeRSAPrivateKeyPKCS1(
+                (RSAPrivateKey) keyPair.getPrivate()));
+        } else
+        {
+            out.write(PEMEncoder.encodePKCS8PrivateKey(keyPair.getPrivate()));
+        }
+        out.close();
+        return file;
+    }
+
+    /**
+     * Create a self-signed credential.
+     * @param keyAlg Key algorithm ("RSA" or "EC").
+     * @param keySize Key size.
+     * @return Credential with key pair and certificate.
+     * @throws java.lang.Exception
+     */
+    public static Credential create(String keyAlg, int keySize)
+            throws Exception
+    {
+        return create(keyAlg, keySize, defaultSubject);
+    }
+
+    /**
+     * Create a self-signed credential with the given subject.
+     * @param keyAlg Key algorithm ("RSA" or "EC").
+     * @param keySize Key size.
+     * @param subject Subject (and issuer) DN, e.g. "CN=localhost".
+     * @return Credential with key pair and certificate.
+     * @throws java.lang.Exception
+     */
+    public static Credential create(String keyAlg, int keySize, String subject)
+            throws Exception
+    {
+        Credential cred = new Credential();
+        cred.readFromFile(createFile(keyAlg, keySize, subject).getPath());
+        return cred;
+    }
+}
@@ -0,0 +1,182 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+TrustRootsIndexerBenchmark.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+/**
+ * Measures TrustRootsIndexer on directories of synthetic CAs, from the
+ * size of the IGTF bundle to a few thousand, with one thread and then
+ * more up to one per processor, reporting the speedup over one thread.
+ * Each CA has a certificate, signing policy and namespaces file.
+ *
+ * The first index of each directory creates the links, and is timed once;
+ * the measured operation is re-indexing, which parses and hashes every
+ * file and checks every link, as each launch that writes trust roots
+ * does.
+ *
+ * Usage: TrustRootsIndexerBenchmark [results.json [iterations [CAs,...]]]
+ */
+public class TrustRootsIndexerBenchmark
+{
+    // Untimed iterations per operation
+    private static final int warmupIterations = 3;
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        File resultsFile = new File("trustroots-indexer-results.json");
+        int iterations = 10;
+        String sizes = "250,1000,4000";
+        if (args.length > 0)
+        {
+            resultsFile = new File(args[0]);
+        }
+        if (args.length > 1)
+        {
+            iterations = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2)
+        {
+            sizes = args[2];
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        for (int threads = 1; threads < processors; threads *= 2)
+        {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(processors);
+        System.out.println(processors + " processors");
+
+        BenchmarkHarness harness =
+            new BenchmarkHarness(warmupIterations, iterations);
+        String[] cas = sizes.split(",");
+        for (int i = 0; i < cas.length; i++)
+        {
+            int count = Integer.parseInt(cas[i].trim());
+            final File dir = createCADirectory(count);
+            // Kept outside the directory, as in the user's Globus directory
+            File manifestFile = File.createTempFile("GridShibCABenchmark", ".manifest");
+            final TrustRootsManifest manifest = TrustRootsManifest.load(manifestFile);
+
+            long start = System.nanoTime();
+            TrustRootsIndexer indexer =
+                new TrustRootsIndexer(dir, manifest, processors);
+            indexer.index();
+            System.out.println(String.format("%d CAs, first index: %s, in %.1f ms",
+                    count, indexer, (System.nanoTime() - start) / 1e6));
+            // Three files, two hash links and four policy aliases per CA
+            int expected = 9 * count;
+            if (dir.list().length != expected)
+            {
+                throw new IllegalStateException("Expected " + expected +
+                        " files after indexing, found " + dir.list().length);
+            }
+
+            double single = 0;
+            for (final int threads : threadCounts)
+            {
+                LatencyStats stats = harness.measure("index." + count + ".threads" + threads,
+                    new BenchmarkHarness.Operation()
+                {
+                    public void run() throws Exception
+                    {
+                        new TrustRootsIndexer(dir, manifest, threads).index();
+                    }
+                });
+                if (threads == 1)
+                {
+                    single = stats.mean();
+                }
+                System.out.println(String.format("    %.0f files/s, %.2fx one thread",
+                        count * 1000 / stats.mean(), single / stats.mean()));
+            }
+            delete(dir);
+            Files.delete(manifestFile.toPath());
+        }
+        harness.writeJSON(resultsFile);
+    }
+
+    /**
+     * Create a directory of CAs named as the server sends them, each with
+     * a certificate, signing policy and namespaces file. The CAs share a
+     * key, as only their names matter here.
+     * @param count Number of CAs.
+     */
+    private static File createCADirectory(int count)
+            throws Exception
+    {
+        File dir = File.createTempFile("GridShibCABenchmark", ".d");
+        dir.delete();
+        dir.mkdir();
+        KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance("EC");
+        keyGenerator.initialize(256);
+        KeyPair keyPair = keyGenerator.genKeyPair();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++)
+        {
+            String subject = "DC=org, DC=Example, O=Example Grid " + (i % 50) +
+                ", CN=Example  CA " + i;
+            X509V3CertificateGenerator certGenerator =
+                new X509V3CertificateGenerator();
+            certGenerator.setSerialNumber(BigInteger.valueOf(i + 1));
+            certGenerator.setIssuerDN(new X509Name(subject));
+            certGenerator.setSubjectDN(new X509Name(subject));
+            certGenerator.setNotBefore(new Date(now - 60 * 1000));
+            certGenerator.setNotAfter(new Date(now + 12 * 3600 * 1000));
+            certGenerator.setPublicKey(keyPair.getPublic());
+            certGenerator.setSignatureAlgorithm("SHA256withECDSA");
+            X509Certificate cert = certGenerator.generate(keyPair.getPrivate(),
+                keyGenerator.getProvider().getName());
+
+            String name = "example-ca-" + i;
+            write(new File(dir, name + ".pem"), PEMEncoder.x509CertToPEM(cert));
+            write(new File(dir, name + ".signing_policy"),
+                  "access_id_CA X509 '/DC=org/DC=Example/CN=Example CA " + i +
+                  "'\npos_rights globus CA:sign\ncond_subjects globus " +
+                  "'\"/DC=org/DC=Example/*\"'\n");
+            write(new File(dir, name + ".namespaces"),
+                  "TO Issuer \"/DC=org/DC=Example/CN=Example CA " + i +
+                  "\" \\\n  PERMIT Subject \"/DC=org/DC=Example/.*\"\n");
+        }
+        return dir;
+    }
+
+    private static void write(File file, String contents)
+            throws IOException
+    {
+        FileWriter out = new FileWriter(file);
+        out.write(contents);
+        out.close();
+    }
+
+    private static void delete(File dir)
+            throws IOException
+    {
+        File[] files = dir.listFiles();
+        for (int i = 0; i < files.length; i++)
+        {
+            Files.delete(files[i].toPath());
+        }
+        Files.delete(dir.toPath());
+    }
+}
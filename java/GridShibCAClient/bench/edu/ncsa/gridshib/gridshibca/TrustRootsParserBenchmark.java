@@ -0,0 +1,305 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+TrustRootsParserBenchmark.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares reading a TrustRoots response line by line with BufferedReader,
+ * as the client used to, against TrustRootsParser, on a synthetic stream
+ * the size of the IGTF bundle: a few hundred CA certificates, signing
+ * policies, namespaces and info files, and CRLs up to a few hundred KB.
+ * Each is measured parsing only and parsing and writing the files to a
+ * temporary directory; MB/s and bytes allocated per op are reported.
+ *
+ * Usage: TrustRootsParserBenchmark [results.json [iterations [CAs]]]
+ */
+public class TrustRootsParserBenchmark
+{
+    // Untimed iterations per operation
+    private static final int warmupIterations = 10;
+
+    private static final byte[] base64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+        .getBytes();
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        File resultsFile = new File("trustroots-parser-results.json");
+        int iterations = 50;
+        int cas = 250;
+        if (args.length > 0)
+        {
+            resultsFile = new File(args[0]);
+        }
+        if (args.length > 1)
+        {
+            iterations = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2)
+        {
+            cas = Integer.parseInt(args[2]);
+        }
+
+        final byte[] stream = createStream(cas);
+        final File dir = createTempDir();
+        double megabytes = stream.length / (1024.0 * 1024.0);
+        System.out.println(String.format("Stream of %.1f MB for %d CAs",
+                megabytes, cas));
+
+        // Both must write exactly the same files
+        readLines(new ByteArrayInputStream(stream), dir);
+        byte[] expected = digestDirectory(dir);
+        parse(new ByteArrayInputStream(stream), dir);
+        if (!Arrays.equals(expected, digestDirectory(dir)))
+        {
+            throw new IllegalStateException("TrustRootsParser output differs from readLine()");
+        }
+
+        BenchmarkHarness harness =
+            new BenchmarkHarness(warmupIterations, iterations);
+        report(megabytes, harness.measure("readLine.parse",
+            new BenchmarkHarness.Operation()
+        {
+            public void run() throws Exception
+            {
+                readLines(new ByteArrayInputStream(stream), null);
+            }
+        }));
+        report(megabytes, harness.measure("TrustRootsParser.parse",
+            new BenchmarkHarness.Operation()
+        {
+            public void run() throws Exception
+            {
+                parse(new ByteArrayInputStream(stream), null);
+            }
+        }));
+        report(megabytes, harness.measure("readLine.write",
+            new BenchmarkHarness.Operation()
+        {
+            public void run() throws Exception
+            {
+                readLines(new ByteArrayInputStream(stream), dir);
+            }
+        }));
+        report(megabytes, harness.measure("TrustRootsParser.write",
+            new BenchmarkHarness.Operation()
+        {
+            public void run() throws Exception
+            {
+                parse(new ByteArrayInputStream(stream), dir);
+            }
+        }));
+
+        harness.writeJSON(resultsFile);
+    }
+
+    private static void report(double megabytes, LatencyStats stats)
+    {
+        System.out.println(String.format("    %.1f MB/s",
+                megabytes * 1000 / stats.mean()));
+    }
+
+    /**
+     * The client's original reader: readLine(), startsWith() and
+     * getBytes() per line into an unbuffered FileOutputStream.
+     * @param dir Where to write files, or null to discard them.
+     */
+    private static void readLines(InputStream in, File dir)
+            throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String prefix = "-----File:";
+        FileOutputStream out = null;
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            if (line.startsWith(prefix))
+            {
+                File origFile = new File(line.substring(prefix.length()).trim());
+                if (out != null)
+                {
+                    out.close();
+                    out = null;
+                }
+                if (dir != null)
+                {
+                    out = new FileOutputStream(new File(dir, origFile.getName()));
+                }
+            } else if (out != null)
+            {
+                String lineCR = line + "\n";
+                out.write(lineCR.getBytes());
+            }
+        }
+        if (out != null)
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * TrustRootsParser writing each file through a FileChannel.
+     * @param dir Where to write files, or null to discard them.
+     */
+    private static void parse(InputStream in, final File dir)
+            throws IOException
+    {
+        new TrustRootsParser(new TrustRootsParser.Handler()
+        {
+            private FileChannel channel = null;
+
+            public void startFile(String name) throws IOException
+            {
+                if (dir != null)
+                {
+                    this.channel = FileChannel.open(
+                        new File(dir, new File(name).getName()).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                }
+            }
+
+            public void data(ByteBuffer data) throws IOException
+            {
+                if (this.channel != null)
+                {
+                    while (data.hasRemaining())
+                    {
+                        this.channel.write(data);
+                    }
+                }
+            }
+
+            public void endFile() throws IOException
+            {
+                if (this.channel != null)
+                {
+                    this.channel.close();
+                    this.channel = null;
+                }
+            }
+
+            public void unchanged(String name)
+            {
+            }
+        }).parse(in);
+    }
+
+    /**
+     * Create a stream shaped like the IGTF bundle as TrustRoots sends it.
+     * @param cas Number of CAs.
+     */
+    private static byte[] createStream(int cas)
+            throws IOException
+    {
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < cas; i++)
+        {
+            String hash = String.format("%08x", random.nextInt());
+            header(out, hash + ".0");
+            pem(out, random, "CERTIFICATE", 1200 + random.nextInt(1000), "\n");
+            header(out, hash + ".signing_policy");
+            text(out, "access_id_CA X509 '/DC=org/DC=Example/CN=Example CA " + i +
+                 "'\npos_rights globus CA:sign\ncond_subjects globus " +
+                 "'\"/DC=org/DC=Example/*\"'\n");
+            header(out, hash + ".namespaces");
+            text(out, "TO Issuer \"/DC=org/DC=Example/CN=Example CA " + i +
+                 "\" \\\n  PERMIT Subject \"/DC=org/DC=Example/.*\"\n");
+            header(out, hash + ".info");
+            // Older servers pass on DOS line endings
+            text(out, "alias = example-ca-" + i + "\r\nurl = http://ca.example.org/" +
+                 i + "\r\nemail = ca@example.org\r\nstatus = accredited:classic\r\n");
+            header(out, hash + ".crl_url");
+            text(out, "http://ca.example.org/" + i + "/crl.pem\n");
+            // A few CAs have large CRLs
+            header(out, hash + ".r0");
+            int crlSize = (i % 25 == 0) ? 200000 + random.nextInt(200000) :
+                500 + random.nextInt(8000);
+            pem(out, random, "X509 CRL", crlSize, "\n");
+        }
+        // A stream cut short of its final newline
+        header(out, "README");
+        out.write("Synthetic trust roots".getBytes());
+        return out.toByteArray();
+    }
+
+    private static void header(ByteArrayOutputStream out, String name)
+            throws IOException
+    {
+        out.write(("-----File: " + name + "\n").getBytes());
+    }
+
+    private static void text(ByteArrayOutputStream out, String text)
+            throws IOException
+    {
+        out.write(text.getBytes());
+    }
+
+    private static void pem(ByteArrayOutputStream out, Random random,
+                            String type, int size, String eol)
+            throws IOException
+    {
+        out.write(("-----BEGIN " + type + "-----" + eol).getBytes());
+        for (int written = 0; written < size; written += 64)
+        {
+            int length = Math.min(64, size - written);
+            for (int i = 0; i < length; i++)
+            {
+                out.write(base64[random.nextInt(base64.length)]);
+            }
+            out.write(eol.getBytes());
+        }
+        out.write(("-----END " + type + "-----" + eol).getBytes());
+    }
+
+    private static File createTempDir()
+            throws IOException
+    {
+        File dir = File.createTempFile("GridShibCABenchmark", ".d");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    /**
+     * @return Digest over the names and contents of the files in dir,
+     * deleting them on exit.
+     */
+    private static byte[] digestDirectory(File dir)
+            throws IOException
+    {
+        MessageDigest digest = TrustRootsManifest.newDigest();
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++)
+        {
+            files[i].deleteOnExit();
+            digest.update(files[i].getName().getBytes());
+            digest.update(TrustRootsManifest.digest(files[i]).getBytes());
+        }
+        return digest.digest();
+    }
+}
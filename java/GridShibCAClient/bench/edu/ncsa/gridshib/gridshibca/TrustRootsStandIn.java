@@ -0,0 +1,365 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+TrustRootsStandIn.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Stand-in for the server's TrustRoots command (GridShibCA::TrustRoots),
+ * serving the files in a directory over plain HTTP on the loopback
+ * interface, for testing and benchmarking the client without a CA.
+ *
+ * Speaks the same protocol: the first of the client's "formats" it knows
+ * (tar or zip) or else the text stream, gzip if the client accepts it
+ * (except for zip), files the client lists with a matching digest left
+ * out (or sent as "-----Unchanged:" lines in the text stream), and an
+ * ETag over the whole set answered with 304 Not Modified when the client
+ * posts it back as the "etag" value (the command's own conditional, not
+ * If-None-Match, as RFC 7232 allows no 304 for a POST). The directory is
+ * re-read on every request, so files can be changed while it runs.
+ * Every response is logged with its format and the bytes sent.
+ *
+ * Usage: TrustRootsStandIn directory [port]
+ * then point the client at http://localhost:port/
+ */
+public class TrustRootsStandIn
+        implements HttpHandler
+{
+    // Directory of trust roots to serve
+    private File dir;
+
+    /**
+     * @param dir Directory of trust roots to serve.
+     */
+    public TrustRootsStandIn(File dir)
+    {
+        this.dir = dir;
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: TrustRootsStandIn directory [port]");
+            System.exit(1);
+        }
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 8080;
+        HttpServer server = start(new File(args[0]), port);
+        System.out.println("Serving trust roots from " + args[0] +
+                " at http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    /**
+     * Start a stand-in server.
+     * @param dir Directory of trust roots to serve.
+     * @param port Port to listen on, 0 for any free port.
+     * @return Running server; stop it with stop(0).
+     * @throws java.io.IOException
+     */
+    public static HttpServer start(File dir, int port)
+            throws IOException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 50);
+        server.createContext("/", new TrustRootsStandIn(dir));
+        server.start();
+        return server;
+    }
+
+    public void handle(HttpExchange exchange)
+            throws IOException
+    {
+        try
+        {
+            Map<String, String> params = parseForm(readFully(
+                    exchange.getRequestBody()));
+            if (!"TrustRoots".equals(params.get("command")))
+            {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            String format = "text";
+            String formats = params.get("formats");
+            if (formats != null)
+            {
+                String[] names = formats.toLowerCase().split("\\s*,\\s*");
+                for (int i = 0; i < names.length; i++)
+                {
+                    if (names[i].equals("tar") || names[i].equals("zip"))
+                    {
+                        format = names[i];
+                        break;
+                    }
+                }
+            }
+            // Name to content, sorted as for the ETag
+            Map<String, byte[]> files = readFiles(format.equals("text"));
+            Map<String, String> digests = new TreeMap<String, String>();
+            MessageDigest bundle = MessageDigest.getInstance("SHA-256");
+            bundle.update(format.equals("text") ? "text\n".getBytes() :
+                          "binary\n".getBytes());
+            for (Map.Entry<String, byte[]> entry : files.entrySet())
+            {
+                String digest = TrustRootsManifest.hex(MessageDigest
+                        .getInstance("SHA-256").digest(entry.getValue()));
+                digests.put(entry.getKey(), digest);
+                bundle.update((entry.getKey() + " " + digest + "\n").getBytes());
+            }
+            String etag = "\"" + TrustRootsManifest.hex(bundle.digest()) + "\"";
+            exchange.getResponseHeaders().set("Content-Type",
+                    format.equals("tar") ? "application/x-tar" :
+                    format.equals("zip") ? "application/zip" : "text/plain");
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(params.get("etag")))
+            {
+                exchange.sendResponseHeaders(304, -1);
+                log("304 Not Modified");
+                return;
+            }
+
+            Map<String, String> clientDigests = new HashMap<String, String>();
+            String digestList = params.get("digests");
+            if (digestList != null)
+            {
+                String[] lines = digestList.split("\r?\n");
+                for (int i = 0; i < lines.length; i++)
+                {
+                    String[] fields = lines[i].trim().split("\\s+");
+                    if (fields.length == 2)
+                    {
+                        clientDigests.put(fields[0], fields[1].toLowerCase());
+                    }
+                }
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            ZipOutputStream zip = format.equals("zip") ?
+                new ZipOutputStream(body) : null;
+            int sent = 0;
+            for (Map.Entry<String, byte[]> entry : files.entrySet())
+            {
+                String name = entry.getKey();
+                boolean unchanged = digests.get(name).equals(clientDigests.get(name));
+                if (format.equals("tar"))
+                {
+                    if (!unchanged)
+                    {
+                        writeTarEntry(body, name, entry.getValue());
+                    }
+                } else if (zip != null)
+                {
+                    if (!unchanged)
+                    {
+                        zip.putNextEntry(new ZipEntry(name));
+                        zip.write(entry.getValue());
+                        zip.closeEntry();
+                    }
+                } else if (unchanged)
+                {
+                    body.write(("-----Unchanged: " + name + "\n").getBytes());
+                } else
+                {
+                    body.write(("-----File: " + name + "\n").getBytes());
+                    body.write(entry.getValue());
+                }
+                if (!unchanged)
+                {
+                    sent++;
+                }
+            }
+            if (format.equals("tar"))
+            {
+                // End of archive
+                body.write(new byte[2 * 512]);
+            } else if (zip != null)
+            {
+                zip.close();
+            }
+            byte[] response = body.toByteArray();
+            String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if ((zip == null) && (accept != null) &&
+                accept.toLowerCase().contains("gzip"))
+            {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                gzip.write(response);
+                gzip.close();
+                response = compressed.toByteArray();
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+            log("200 OK, " + format + ", " + sent + " of " + files.size() +
+                    " files, " + response.length + " bytes");
+        } catch (Exception e)
+        {
+            log("Error: " + e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Read the trust roots as GridShibCA::TrustRoots does.
+     * @param text True to read as text, with "\n" line endings, false to
+     * read files as they are.
+     * @return File names to contents, sorted by name.
+     */
+    private Map<String, byte[]> readFiles(boolean text)
+            throws IOException
+    {
+        Map<String, byte[]> files = new TreeMap<String, byte[]>();
+        File[] list = this.dir.listFiles();
+        if (list == null)
+        {
+            return files;
+        }
+        for (int i = 0; i < list.length; i++)
+        {
+            if (!list[i].isFile())
+            {
+                continue;
+            }
+            if (!text)
+            {
+                files.put(list[i].getName(),
+                        readFully(new FileInputStream(list[i])));
+                continue;
+            }
+            StringBuilder content = new StringBuilder();
+            BufferedReader in = new BufferedReader(new FileReader(list[i]));
+            try
+            {
+                String line;
+                while ((line = in.readLine()) != null)
+                {
+                    content.append(line).append('\n');
+                }
+            } finally
+            {
+                in.close();
+            }
+            files.put(list[i].getName(), content.toString().getBytes());
+        }
+        return files;
+    }
+
+    /**
+     * Write a ustar entry for a regular file.
+     */
+    private static void writeTarEntry(ByteArrayOutputStream out, String name,
+                                      byte[] content)
+            throws IOException
+    {
+        byte[] header = new byte[512];
+        byte[] nameBytes = name.getBytes("UTF-8");
+        if (nameBytes.length > 100)
+        {
+            throw new IOException("Name too long for tar: " + name);
+        }
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, content.length);
+        octal(header, 136, 12, System.currentTimeMillis() / 1000);
+        header[156] = '0';
+        System.arraycopy("ustar\u000000".getBytes(), 0, header, 257, 8);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (int i = 0; i < header.length; i++)
+        {
+            checksum += header[i] & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        out.write(header);
+        out.write(content);
+        out.write(new byte[(512 - content.length % 512) % 512]);
+    }
+
+    /**
+     * Write value as a NUL terminated octal field.
+     */
+    private static void octal(byte[] header, int offset, int length,
+                              long value)
+    {
+        String digits = Long.toOctalString(value);
+        while (digits.length() < length - 1)
+        {
+            digits = "0" + digits;
+        }
+        System.arraycopy(digits.getBytes(), 0, header, offset, length - 1);
+        header[offset + length - 1] = 0;
+    }
+
+    private static Map<String, String> parseForm(byte[] body)
+            throws IOException
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        String form = new String(body, "UTF-8");
+        if (form.length() == 0)
+        {
+            return params;
+        }
+        String[] pairs = form.split("&");
+        for (int i = 0; i < pairs.length; i++)
+        {
+            int eq = pairs[i].indexOf('=');
+            if (eq > 0)
+            {
+                params.put(URLDecoder.decode(pairs[i].substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pairs[i].substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static byte[] readFully(InputStream in)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void log(String message)
+    {
+        System.out.println("TrustRoots: " + message);
+    }
+}
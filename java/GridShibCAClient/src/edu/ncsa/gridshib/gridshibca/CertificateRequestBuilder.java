@@ -0,0 +1,218 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+CertificateRequestBuilder.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.HashMap;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.X509Name;
+
+/**
+ * Builds PKCS10 certificate requests for a fixed subject.
+ *
+ * Everything in a request except the public key and signature is the same
+ * for every request we make, so the DER encoding of the version and
+ * subject, the (empty) attributes and the signature algorithm identifiers
+ * are computed once. Each request then only costs splicing in the
+ * encoded SubjectPublicKeyInfo, which the JDK already gives us, and
+ * signing; no ASN.1 object graph is built. Output is byte-for-byte what
+ * BouncyCastle's PKCS10CertificationRequest produces.
+ *
+ * Instances are immutable and may be shared between threads.
+ */
+public class CertificateRequestBuilder
+{
+    // DER tags
+    private static final int SEQUENCE = 0x30;
+    private static final int BIT_STRING = 0x03;
+
+    // CertificationRequestInfo version (INTEGER 0)
+    private static final byte[] version = { 0x02, 0x01, 0x00 };
+
+    // Empty attributes: [0] IMPLICIT SET OF Attribute
+    private static final byte[] emptyAttributes = { (byte) 0xa0, 0x00 };
+
+    // Encoded AlgorithmIdentifiers by signature algorithm name
+    private static final HashMap<String, byte[]> sigAlgIdentifiers =
+            new HashMap<String, byte[]>();
+
+    static
+    {
+        // RSA algorithms take NULL parameters, ECDSA ones none (RFC 5758)
+        addSigAlg("SHA256withRSA", "1.2.840.113549.1.1.11", true);
+        addSigAlg("SHA384withRSA", "1.2.840.113549.1.1.12", true);
+        addSigAlg("SHA256withECDSA", "1.2.840.10045.4.3.2", false);
+        addSigAlg("SHA384withECDSA", "1.2.840.10045.4.3.3", false);
+    }
+
+    // Encoded version and subject, which start every request
+    private byte[] prefix;
+
+    /**
+     * @param subjectDN Subject to put in requests, in RFC 2253 format.
+     */
+    public CertificateRequestBuilder(String subjectDN)
+    {
+        byte[] subject = new X509Name(subjectDN).getDEREncoded();
+        this.prefix = new byte[version.length + subject.length];
+        System.arraycopy(version, 0, this.prefix, 0, version.length);
+        System.arraycopy(subject, 0, this.prefix, version.length,
+                subject.length);
+    }
+
+    /**
+     * Create and sign a DER-encoded certificate request.
+     * @param keyPair Key pair to request a certificate for.
+     * @param sigAlgName Signature algorithm (e.g. "SHA256withRSA").
+     * @param provider Provider to sign with, or null for the default.
+     * @return DER-encoded request.
+     * @throws java.security.NoSuchAlgorithmException
+     * @throws java.security.NoSuchProviderException
+     * @throws java.security.InvalidKeyException
+     * @throws java.security.SignatureException
+     */
+    public byte[] generateDER(KeyPair keyPair, String sigAlgName,
+                              String provider)
+            throws NoSuchAlgorithmException, NoSuchProviderException,
+            InvalidKeyException, SignatureException
+    {
+        byte[] sigAlgIdentifier = sigAlgIdentifiers.get(sigAlgName);
+        if (sigAlgIdentifier == null)
+        {
+            throw new NoSuchAlgorithmException(
+                    "Unsupported request signature algorithm: " + sigAlgName);
+        }
+        byte[] publicKeyInfo = keyPair.getPublic().getEncoded();
+
+        // CertificationRequestInfo, which is what gets signed
+        int infoContentLength = this.prefix.length + publicKeyInfo.length +
+                emptyAttributes.length;
+        int infoLength = headerLength(infoContentLength) + infoContentLength;
+        byte[] info = new byte[infoLength];
+        int offset = writeHeader(info, 0, SEQUENCE, infoContentLength);
+        System.arraycopy(this.prefix, 0, info, offset, this.prefix.length);
+        offset += this.prefix.length;
+        System.arraycopy(publicKeyInfo, 0, info, offset, publicKeyInfo.length);
+        offset += publicKeyInfo.length;
+        System.arraycopy(emptyAttributes, 0, info, offset,
+                emptyAttributes.length);
+
+        Signature signer = (provider == null) ?
+                Signature.getInstance(sigAlgName) :
+                Signature.getInstance(sigAlgName, provider);
+        signer.initSign(keyPair.getPrivate());
+        signer.update(info);
+        byte[] signature = signer.sign();
+
+        // BIT STRING content is a zero unused-bits byte plus the signature
+        int bitStringLength = 1 + signature.length;
+        int contentLength = infoLength + sigAlgIdentifier.length +
+                headerLength(bitStringLength) + bitStringLength;
+        byte[] request = new byte[headerLength(contentLength) + contentLength];
+        offset = writeHeader(request, 0, SEQUENCE, contentLength);
+        System.arraycopy(info, 0, request, offset, infoLength);
+        offset += infoLength;
+        System.arraycopy(sigAlgIdentifier, 0, request, offset,
+                sigAlgIdentifier.length);
+        offset += sigAlgIdentifier.length;
+        offset = writeHeader(request, offset, BIT_STRING, bitStringLength);
+        request[offset++] = 0;
+        System.arraycopy(signature, 0, request, offset, signature.length);
+        return request;
+    }
+
+    /**
+     * Create and sign a PEM-encoded certificate request.
+     * @param keyPair Key pair to request a certificate for.
+     * @param sigAlgName Signature algorithm (e.g. "SHA256withRSA").
+     * @param provider Provider to sign with, or null for the default.
+     * @return PEM-encoded request.
+     * @throws java.io.IOException
+     * @throws java.security.NoSuchAlgorithmException
+     * @throws java.security.NoSuchProviderException
+     * @throws java.security.InvalidKeyException
+     * @throws java.security.SignatureException
+     */
+    public String generatePEM(KeyPair keyPair, String sigAlgName,
+                              String provider)
+            throws IOException, NoSuchAlgorithmException,
+            NoSuchProviderException, InvalidKeyException, SignatureException
+    {
+        return PEMEncoder.toPEM(generateDER(keyPair, sigAlgName, provider),
+                "CERTIFICATE REQUEST");
+    }
+
+    /**
+     * Pre-encode an AlgorithmIdentifier.
+     * @param name JCA signature algorithm name.
+     * @param oid Algorithm OID.
+     * @param nullParameters Whether to include NULL parameters.
+     */
+    private static void addSigAlg(String name, String oid,
+                                  boolean nullParameters)
+    {
+        AlgorithmIdentifier algId = nullParameters ?
+                new AlgorithmIdentifier(new DERObjectIdentifier(oid),
+                        new DERNull()) :
+                new AlgorithmIdentifier(new DERObjectIdentifier(oid));
+        sigAlgIdentifiers.put(name, algId.getDEREncoded());
+    }
+
+    /**
+     * @param contentLength Length of DER content.
+     * @return Length of tag plus length octets for content of given length.
+     */
+    private static int headerLength(int contentLength)
+    {
+        if (contentLength < 0x80)
+        {
+            return 2;
+        }
+        int lengthOctets = 1;
+        while ((contentLength >>> (8 * lengthOctets)) != 0)
+        {
+            lengthOctets++;
+        }
+        return 2 + lengthOctets;
+    }
+
+    /**
+     * Write a DER tag and length.
+     * @param buffer Buffer to write into.
+     * @param offset Offset to write at.
+     * @param tag Tag to write.
+     * @param contentLength Length of content that will follow.
+     * @return Offset following header.
+     */
+    private static int writeHeader(byte[] buffer, int offset, int tag,
+                                   int contentLength)
+    {
+        buffer[offset++] = (byte) tag;
+        if (contentLength < 0x80)
+        {
+            buffer[offset++] = (byte) contentLength;
+            return offset;
+        }
+        int lengthOctets = headerLength(contentLength) - 2;
+        buffer[offset++] = (byte) (0x80 | lengthOctets);
+        for (int i = lengthOctets - 1; i >= 0; i--)
+        {
+            buffer[offset++] = (byte) (contentLength >>> (8 * i));
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,76 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+CountingInputStream.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream that counts the bytes read through it, e.g. to compare the
+ * bytes received for a compressed response with its inflated size.
+ */
+class CountingInputStream
+        extends FilterInputStream
+{
+    // Bytes read so far
+    private long count = 0;
+
+    /**
+     * @param in Stream to count bytes read from.
+     */
+    CountingInputStream(InputStream in)
+    {
+        super(in);
+    }
+
+    /**
+     * @return Number of bytes read or skipped.
+     */
+    long getCount()
+    {
+        return this.count;
+    }
+
+    public int read()
+            throws IOException
+    {
+        int b = super.read();
+        if (b != -1)
+        {
+            this.count++;
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len)
+            throws IOException
+    {
+        int n = super.read(b, off, len);
+        if (n > 0)
+        {
+            this.count += n;
+        }
+        return n;
+    }
+
+    public long skip(long n)
+            throws IOException
+    {
+        long skipped = super.skip(n);
+        this.count += skipped;
+        return skipped;
+    }
+
+    public boolean markSupported()
+    {
+        // Resetting would make us count bytes twice
+        return false;
+    }
+}
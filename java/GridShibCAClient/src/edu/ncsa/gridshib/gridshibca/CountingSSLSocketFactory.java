@@ -0,0 +1,310 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+CountingSSLSocketFactory.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * SSLSocketFactory that instruments the TLS sockets it creates for
+ * another factory: it counts them, and whether each one's handshake was
+ * full or resumed a session cached from an earlier connection. It
+ * changes nothing about the handshakes themselves. Sessions are cached
+ * by the delegate's SSLContext for the life of the JVM only; there is no
+ * persisted session cache, as JSSE offers no way to save or restore a
+ * session, so every launch starts with a full handshake.
+ *
+ * HttpsURLConnection only reuses a kept-alive connection for a request
+ * made with the same factory instance, so a single instance must be used
+ * for all requests to a server.
+ *
+ * It also times each connection's TCP connect and TLS handshake for the
+ * RequestTiming current on the connecting thread. To see the two
+ * separately, createSocket() hands HttpsURLConnection a plain socket that
+ * times its connect, which HttpsURLConnection then layers TLS over with
+ * createSocket(Socket, ...) and handshakes itself. We must not start the
+ * handshake there: HttpsURLConnection starts it again, which on TLS 1.2
+ * is a renegotiation many servers refuse. Instead the layered socket is
+ * remembered for the connecting thread, and once the connection is made
+ * the caller calls connected() to classify and time its handshake.
+ * Sockets made any other way are classified by a
+ * HandshakeCompletedListener, which JSSE calls from another thread.
+ *
+ * Sockets are configured with a SocketTuning, if given, before they
+ * connect or handshake.
+ */
+class CountingSSLSocketFactory
+        extends SSLSocketFactory
+{
+    // Factory doing the real work
+    private SSLSocketFactory delegate;
+
+    // Settings for our sockets, or null to leave them alone
+    private SocketTuning tuning;
+
+    // Sockets created
+    private AtomicInteger sockets = new AtomicInteger();
+
+    // Completed handshakes by type
+    private AtomicInteger fullHandshakes = new AtomicInteger();
+    private AtomicInteger resumedHandshakes = new AtomicInteger();
+
+    // Classifies each completed handshake of sockets we didn't handshake
+    // ourselves
+    private HandshakeCompletedListener handshakeListener =
+        new HandshakeCompletedListener()
+    {
+        public void handshakeCompleted(HandshakeCompletedEvent event)
+        {
+            Long created = socketCreationTimes.remove(event.getSocket());
+            if (created != null)
+            {
+                isResumed(event.getSession(), created.longValue(), true);
+            }
+        }
+    };
+
+    // Creation times of sockets whose handshake hasn't been counted;
+    // whichever of connected() and the listener removes one counts it
+    private Map<Socket, Long> socketCreationTimes =
+        Collections.synchronizedMap(new WeakHashMap<Socket, Long>());
+
+    /**
+     * A socket layered by createSocket(Socket, ...), waiting for the
+     * connecting thread to call connected().
+     */
+    private static class Layered
+    {
+        SSLSocket socket;
+        RequestTiming timing;
+        long created;
+        long startNanos;
+    }
+
+    // Socket layered on each thread and not yet connected()
+    private ThreadLocal<Layered> layered = new ThreadLocal<Layered>();
+
+    /**
+     * @param delegate Factory to create sockets with.
+     */
+    CountingSSLSocketFactory(SSLSocketFactory delegate)
+    {
+        this(delegate, null);
+    }
+
+    /**
+     * @param delegate Factory to create sockets with.
+     * @param tuning Settings for the sockets, or null for none.
+     */
+    CountingSSLSocketFactory(SSLSocketFactory delegate, SocketTuning tuning)
+    {
+        this.delegate = delegate;
+        this.tuning = tuning;
+    }
+
+    /**
+     * @return Number of sockets created.
+     */
+    int getSocketCount()
+    {
+        return this.sockets.get();
+    }
+
+    /**
+     * Handshakes of connections reported by connected() are counted there,
+     * so once the requests using them have returned they are all
+     * included. Those of other sockets are counted when JSSE calls our
+     * listener, on another thread, so may be missed if read at once.
+     * @return Number of handshakes that established a new session.
+     */
+    int getFullHandshakeCount()
+    {
+        return this.fullHandshakes.get();
+    }
+
+    /**
+     * As for getFullHandshakeCount().
+     * @return Number of handshakes that resumed a cached session.
+     */
+    int getResumedHandshakeCount()
+    {
+        return this.resumedHandshakes.get();
+    }
+
+    public String[] getDefaultCipherSuites()
+    {
+        return this.delegate.getDefaultCipherSuites();
+    }
+
+    public String[] getSupportedCipherSuites()
+    {
+        return this.delegate.getSupportedCipherSuites();
+    }
+
+    /**
+     * @return Unconnected plain socket, to be layered with
+     * createSocket(Socket, ...) once connected.
+     */
+    public Socket createSocket()
+            throws IOException
+    {
+        Socket socket = new Socket()
+        {
+            public void connect(SocketAddress endpoint, int timeout)
+                    throws IOException
+            {
+                long start = System.nanoTime();
+                super.connect(endpoint, timeout);
+                RequestTiming timing = RequestTiming.current();
+                if (timing != null)
+                {
+                    timing.connectDone(System.nanoTime() - start);
+                }
+            }
+        };
+        if (this.tuning != null)
+        {
+            this.tuning.applyTo(socket);
+        }
+        return socket;
+    }
+
+    /**
+     * Layer TLS over a connected socket. The caller starts the handshake;
+     * call connected() on the same thread once it has.
+     */
+    public Socket createSocket(Socket s, String host, int port,
+                               boolean autoClose)
+            throws IOException
+    {
+        SSLSocket socket = (SSLSocket) this.delegate.createSocket(s, host,
+                port, autoClose);
+        // With TCP settings too, in case s wasn't from createSocket() (e.g.
+        // a tunnel through a proxy)
+        counted(socket);
+        Layered pending = new Layered();
+        pending.socket = socket;
+        pending.timing = RequestTiming.current();
+        pending.created = System.currentTimeMillis();
+        pending.startNanos = System.nanoTime();
+        this.layered.set(pending);
+        return socket;
+    }
+
+    /**
+     * Note that the connection for the request being made on this thread
+     * is established, so if it is a new connection its handshake is done:
+     * count it as full or resumed and record its time, from layering TLS
+     * to now, in the request's timing. Call as soon as the connection is
+     * made (e.g. right after HttpURLConnection.connect()) for an accurate
+     * time. Does nothing if this thread's request reused a connection.
+     * @param timing Timing of the request, or null.
+     */
+    void connected(RequestTiming timing)
+    {
+        Layered pending = this.layered.get();
+        this.layered.remove();
+        if ((pending == null) || (pending.timing != timing))
+        {
+            // Reused a connection, or a socket left from a failed request
+            return;
+        }
+        long handshake = System.nanoTime() - pending.startNanos;
+        // The handshake is done, so this doesn't start one
+        SSLSession session = pending.socket.getSession();
+        boolean resumed = isResumed(session, pending.created,
+            this.socketCreationTimes.remove(pending.socket) != null);
+        if (timing != null)
+        {
+            timing.handshakeDone(handshake, session.getProtocol(),
+                session.getCipherSuite(), resumed);
+        }
+    }
+
+    public Socket createSocket(String host, int port)
+            throws IOException
+    {
+        return counted(this.delegate.createSocket(host, port));
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localHost,
+                               int localPort)
+            throws IOException
+    {
+        return counted(this.delegate.createSocket(host, port, localHost,
+                localPort));
+    }
+
+    public Socket createSocket(InetAddress host, int port)
+            throws IOException
+    {
+        return counted(this.delegate.createSocket(host, port));
+    }
+
+    public Socket createSocket(InetAddress address, int port,
+                               InetAddress localAddress, int localPort)
+            throws IOException
+    {
+        return counted(this.delegate.createSocket(address, port,
+                localAddress, localPort));
+    }
+
+    /**
+     * Classify, and perhaps count, a completed handshake.
+     * @param session Session the handshake established.
+     * @param created Time the socket was created.
+     * @param count True to count the handshake.
+     * @return True if session was resumed.
+     */
+    private boolean isResumed(SSLSession session, long created, boolean count)
+    {
+        // A resumed session keeps the creation time of the session it
+        // resumes, which predates this socket.
+        boolean resumed = (session.getCreationTime() < created);
+        if (count)
+        {
+            (resumed ? this.resumedHandshakes : this.fullHandshakes)
+                .incrementAndGet();
+        }
+        return resumed;
+    }
+
+    private Socket counted(Socket socket)
+            throws IOException
+    {
+        this.sockets.incrementAndGet();
+        if (this.tuning != null)
+        {
+            this.tuning.applyTo(socket);
+        }
+        if (socket instanceof SSLSocket)
+        {
+            if (this.tuning != null)
+            {
+                this.tuning.applyTo((SSLSocket) socket);
+            }
+            this.socketCreationTimes.put(socket,
+                Long.valueOf(System.currentTimeMillis()));
+            ((SSLSocket) socket).addHandshakeCompletedListener(
+                this.handshakeListener);
+        }
+        return socket;
+    }
+}
@@ -8,12 +8,15 @@ Copyright 2006-2010 The Board of Trustees of the University of Illinois.
 Please see LICENSE at the root of the distribution.
 */
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
 import java.security.cert.Certificate;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -21,16 +24,16 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.security.Provider;
-import java.security.SecureRandom;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateKey;
 import java.util.Date;
-import javax.crypto.Cipher;
-import org.bouncycastle.asn1.DERSet;
-import org.bouncycastle.asn1.x509.X509Name;
-import org.bouncycastle.jce.PKCS10CertificationRequest;
+import java.util.List;
 import org.bouncycastle.openssl.PEMWriter;
 import org.globus.util.ConfigUtil;
 
@@ -47,21 +50,68 @@ public class Credential
     // Default key algorithm to use for generation
     private static String defaultKeyAlg = "RSA";
 
-    // Algorithm to use when signing request
-    // XXX Should be SHA?
+    // Default key size for elliptic curve keys (NIST P-256)
+    private static int defaultECKeySize = 256;
+
+    // Algorithm to use when signing request with a RSA key
     private static String pkcs10SigAlgName = "SHA256withRSA";
 
+    // Algorithms to use when signing request with an EC key. P-384 and
+    // larger curves get a matching hash.
+    private static String pkcs10ECSigAlgName = "SHA256withECDSA";
+    private static String pkcs10ECLargeSigAlgName = "SHA384withECDSA";
+
     // A bogus DN to put in the certificate request. It will
     // be overwritten by the GridShib-CA with the real user DN
     private static String requestDN = "CN=Credential Retriever, O=GridShib-CA, C=US";
 
-    // This just seems to work, not sure why
-    private static String pkcs10Provider = "SunRsaSign";
+    // Builds requests for requestDN with everything but the key and
+    // signature pre-encoded
+    private static CertificateRequestBuilder requestBuilder =
+        new CertificateRequestBuilder(requestDN);
+
+    // Encrypts private keys we write
+    private static PrivateKeyEncryptor keyEncryptor = new PrivateKeyEncryptor();
+
+    // Engine used to generate key pairs; a single generator until
+    // useRacingKeyPairEngine() is told how many to race
+    private static volatile KeyPairEngine keyPairEngine = new SimpleKeyPairEngine();
 
     // Our key pair
     private KeyPair keyPair = null;
+    // Provider of our key pair, which we also use to sign the request
+    private String keyProvider = null;
     // And associated certificate
     private X509Certificate cert = null;
+    // PEM-encoded certificate request for keyPair, once generated
+    private String requestPEM = null;
+    // Certificates that issued cert (e.g. the end entity certificate of a
+    // proxy), nearest first. Written after our key in proxy files.
+    private X509Certificate[] issuerChain = new X509Certificate[0];
+
+    /**
+     * Create an empty credential.
+     */
+    public Credential()
+    {
+    }
+
+    /**
+     * Create a credential from an existing key pair and certificate, e.g. a
+     * locally signed proxy.
+     * @param keyPair Key pair.
+     * @param keyProvider Provider to sign with using keyPair, or null.
+     * @param cert Certificate for keyPair.
+     * @param issuerChain Certificates that issued cert, nearest first.
+     */
+    Credential(KeyPair keyPair, String keyProvider, X509Certificate cert,
+               X509Certificate[] issuerChain)
+    {
+        this.keyPair = keyPair;
+        this.keyProvider = keyProvider;
+        this.cert = cert;
+        this.issuerChain = issuerChain;
+    }
 
     /**
      * Generate new key pair using default key size and algorithm.
@@ -78,10 +128,101 @@ public class Credential
         genKeyPair(Credential.defaultKeySize, Credential.defaultKeyAlg);
     }
 
+    /**
+     * Return the default key size for the given key algorithm.
+     * @param keyAlg Key algorithm ("RSA" or "EC").
+     * @return Default key size in bits.
+     */
+    public static int getDefaultKeySize(String keyAlg)
+    {
+        if ("EC".equalsIgnoreCase(keyAlg))
+        {
+            return Credential.defaultECKeySize;
+        }
+        return Credential.defaultKeySize;
+    }
+
+    /**
+     * Set the engine used to generate key pairs.
+     * @param engine Engine to use.
+     */
+    public static void setKeyPairEngine(KeyPairEngine engine)
+    {
+        if (engine == null)
+        {
+            throw new IllegalArgumentException("null engine");
+        }
+        Credential.keyPairEngine = engine;
+    }
+
+    /**
+     * @return The engine used to generate key pairs.
+     */
+    public static KeyPairEngine getKeyPairEngine()
+    {
+        return Credential.keyPairEngine;
+    }
+
+    /**
+     * Race RSA key generators from now on, unless we already race as many.
+     * A racing engine this replaces is shut down, finishing any generation
+     * under way.
+     * @param racers Number of generators to race. 0 means one per
+     * available processor; 1 disables racing.
+     * @return Engine now in use.
+     */
+    public static synchronized RacingKeyPairEngine useRacingKeyPairEngine(int racers)
+    {
+        RacingKeyPairEngine engine = new RacingKeyPairEngine(racers);
+        KeyPairEngine replaced = Credential.keyPairEngine;
+        if (replaced instanceof RacingKeyPairEngine)
+        {
+            RacingKeyPairEngine racing = (RacingKeyPairEngine) replaced;
+            if (racing.getRacers() == engine.getRacers())
+            {
+                return racing;
+            }
+            racing.shutdown();
+        }
+        Credential.keyPairEngine = engine;
+        return engine;
+    }
+
+    /**
+     * Set how private keys written to files are encrypted.
+     * @param encryptor Encryptor to use.
+     */
+    public static void setKeyEncryptor(PrivateKeyEncryptor encryptor)
+    {
+        if (encryptor == null)
+        {
+            throw new IllegalArgumentException("null encryptor");
+        }
+        Credential.keyEncryptor = encryptor;
+    }
+
+    /**
+     * @return How private keys written to files are encrypted.
+     */
+    public static PrivateKeyEncryptor getKeyEncryptor()
+    {
+        return Credential.keyEncryptor;
+    }
+
+    /**
+     * @return The default key algorithm.
+     */
+    public static String getDefaultKeyAlg()
+    {
+        return Credential.defaultKeyAlg;
+    }
+
     /**
      * Generate new key pair.
-     * @param keySize The key size for the generated keys.
-     * @param keyAlg The key algorithm to use.
+     * @param keySize The key size for the generated keys, or 0 to use the
+     * default for keyAlg. For "EC" the size selects the NIST curve (256 for
+     * P-256, 384 for P-384).
+     * @param keyAlg The key algorithm to use ("RSA" or "EC").
      * @throws java.security.NoSuchAlgorithmException
      * @throws java.io.IOException
      * @throws java.security.NoSuchProviderException
@@ -92,14 +233,23 @@ public class Credential
             throws NoSuchAlgorithmException, IOException,
             NoSuchProviderException, InvalidKeyException, SignatureException
     {
-        KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance(keyAlg);
-        keyGenerator.initialize(keySize);
-
-        this.keyPair = keyGenerator.genKeyPair();
+        if (keySize <= 0)
+        {
+            keySize = Credential.getDefaultKeySize(keyAlg);
+        }
+        this.keyPair = Credential.keyPairEngine.genKeyPair(keySize, keyAlg);
+        // Sign with the same provider that made the keys (SunRsaSign for
+        // RSA, SunEC for EC).
+        this.keyProvider =
+            KeyPairGenerator.getInstance(keyAlg).getProvider().getName();
+        // Any previous request was for the old key pair
+        this.requestPEM = null;
     }
 
     /**
-     * Return a PEM-encoded certificate request.
+     * Return a PEM-encoded certificate request. The request is generated
+     * once per key pair and cached, so calling this ahead of time (e.g.
+     * from a background thread) makes later calls free.
      * @return The certificate request in PEM format.
      * @throws java.security.NoSuchAlgorithmException
      * @throws java.io.IOException
@@ -113,19 +263,44 @@ public class Credential
         if (this.keyPair == null) {
             this.genKeyPair();
         }
+        if (this.requestPEM == null) {
+            this.requestPEM = this.createPEMCertificateRequest();
+        }
+        return this.requestPEM;
+    }
 
-        PKCS10CertificationRequest pkcs10 =
-                new PKCS10CertificationRequest(Credential.pkcs10SigAlgName,
-                new X509Name(Credential.requestDN),
-                keyPair.getPublic(),
-                new DERSet(),
-                keyPair.getPrivate(),
-                pkcs10Provider);
-
-                // XXX Use BouncyCastle's PEMWriter
-        String requestPEM = PEMEncoder.encodePKCS10CertificationRequest(pkcs10);
+    /**
+     * Create and sign a new PEM-encoded certificate request for our key
+     * pair, bypassing the cache used by generatePEMCertificateRequest().
+     * @return The certificate request in PEM format.
+     * @throws java.security.NoSuchAlgorithmException
+     * @throws java.io.IOException
+     * @throws java.security.NoSuchProviderException
+     * @throws java.security.InvalidKeyException
+     * @throws java.security.SignatureException
+     */
+    String createPEMCertificateRequest()
+            throws NoSuchAlgorithmException, IOException, NoSuchProviderException, InvalidKeyException, SignatureException
+    {
+        return Credential.requestBuilder.generatePEM(keyPair,
+                Credential.getSigAlgName(keyPair.getPublic()),
+                this.keyProvider);
+    }
 
-        return requestPEM;
+    /**
+     * @param publicKey Public key of the key pair doing the signing.
+     * @return Algorithm to use when signing a request (or a certificate)
+     * with the key pair.
+     */
+    static String getSigAlgName(PublicKey publicKey)
+    {
+        if (publicKey instanceof ECPublicKey)
+        {
+            int fieldSize = ((ECPublicKey) publicKey).getParams().getCurve().getField().getFieldSize();
+            return (fieldSize > 256) ?
+                Credential.pkcs10ECLargeSigAlgName : Credential.pkcs10ECSigAlgName;
+        }
+        return Credential.pkcs10SigAlgName;
     }
 
     /**
@@ -158,6 +333,49 @@ public class Credential
         return convertedSubject;
     }
 
+    /**
+     * @return Our certificate, or null if we don't have one yet.
+     */
+    public X509Certificate getCertificate()
+    {
+        return this.cert;
+    }
+
+    /**
+     * @return Our certificate followed by the certificates that issued it,
+     * or an empty array if we have no certificate yet.
+     */
+    public X509Certificate[] getCertificateChain()
+    {
+        if (this.cert == null)
+        {
+            return new X509Certificate[0];
+        }
+        X509Certificate[] chain =
+            new X509Certificate[1 + this.issuerChain.length];
+        chain[0] = this.cert;
+        System.arraycopy(this.issuerChain, 0, chain, 1,
+                this.issuerChain.length);
+        return chain;
+    }
+
+    /**
+     * @return Our key pair, or null if we have none.
+     */
+    KeyPair getKeyPair()
+    {
+        return this.keyPair;
+    }
+
+    /**
+     * @return Provider to sign with using our key pair, or null for the
+     * default.
+     */
+    String getKeyProvider()
+    {
+        return this.keyProvider;
+    }
+
     /**
      * @return date Gets the notBefore date from the validity period of the certificate.
      */
@@ -187,6 +405,127 @@ public class Credential
         this.cert = PEMEncoder.x509CertFromPEM(inStream);
     }
 
+    /**
+     * Read certificate and unencrypted private key from a file previously
+     * written by writeToFile(), replacing any key pair we have. The
+     * certificate's public key completes the key pair, so a new
+     * certificate request can be made without generating new keys.
+     * @param path Path of file to read.
+     * @throws java.io.IOException if the file lacks a certificate or an
+     * unencrypted private key.
+     * @throws java.security.GeneralSecurityException
+     */
+    public void readFromFile(String path)
+            throws IOException, GeneralSecurityException
+    {
+        StringBuffer pem = new StringBuffer();
+        FileReader reader = new FileReader(path);
+        char[] buffer = new char[4096];
+        int charsRead;
+        while ((charsRead = reader.read(buffer)) != -1)
+        {
+            pem.append(buffer, 0, charsRead);
+        }
+        reader.close();
+
+        // Our certificate comes first, any issuers (for a proxy) follow
+        List<byte[]> certs = PEMEncoder.allFromPEM(pem.toString(), "CERTIFICATE");
+        if (certs.isEmpty())
+        {
+            throw new IOException("No certificate found in " + path);
+        }
+        X509Certificate[] chain = new X509Certificate[certs.size()];
+        for (int i = 0; i < chain.length; i++)
+        {
+            chain[i] = PEMEncoder.x509CertFromPEM(
+                new ByteArrayInputStream(certs.get(i)));
+        }
+        PrivateKey privateKey = PEMEncoder.privateKeyFromPEM(pem.toString(),
+                chain[0].getPublicKey().getAlgorithm());
+        this.setKeyPairAndCert(privateKey, chain);
+    }
+
+    /**
+     * Read certificate and private key from a PKCS12 file previously
+     * written by writeToPKCS12File(), replacing any key pair we have.
+     * @param path Path of file to read.
+     * @param password Passphrase with which the private key is encrypted.
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    public void readFromPKCS12File(String path, char[] password)
+            throws IOException, GeneralSecurityException
+    {
+        KeyStore keyStore = KeyStore.getInstance("pkcs12");
+        FileInputStream keyStoreIn = new FileInputStream(path);
+        try {
+            keyStore.load(keyStoreIn, password);
+        } finally {
+            keyStoreIn.close();
+        }
+        PrivateKey privateKey =
+            (PrivateKey) keyStore.getKey("default", password);
+        Certificate[] certs = keyStore.getCertificateChain("default");
+        if ((privateKey == null) || (certs == null) || (certs.length == 0))
+        {
+            throw new IOException("No credential found in " + path);
+        }
+        X509Certificate[] chain = new X509Certificate[certs.length];
+        for (int i = 0; i < chain.length; i++)
+        {
+            chain[i] = (X509Certificate) certs[i];
+        }
+        this.setKeyPairAndCert(privateKey, chain);
+    }
+
+    /**
+     * @return Algorithm of our key pair (e.g. "RSA"), or null if we have
+     * none.
+     */
+    public String getKeyAlgorithm()
+    {
+        if (this.keyPair == null)
+        {
+            return null;
+        }
+        return this.keyPair.getPrivate().getAlgorithm();
+    }
+
+    /**
+     * Install a private key and the certificate holding its public key,
+     * checking that they actually belong together.
+     * @param privateKey The private key.
+     * @param chain Certificate for the private key followed by its issuers.
+     * @throws java.security.GeneralSecurityException if they don't match.
+     */
+    private void setKeyPairAndCert(PrivateKey privateKey,
+                                   X509Certificate[] chain)
+            throws GeneralSecurityException
+    {
+        X509Certificate newCert = chain[0];
+        KeyPair newKeyPair = new KeyPair(newCert.getPublicKey(), privateKey);
+        String sigAlgName = Credential.getSigAlgName(newKeyPair.getPublic());
+        byte[] challenge = requestDN.getBytes();
+        Signature signer = Signature.getInstance(sigAlgName);
+        signer.initSign(privateKey);
+        signer.update(challenge);
+        byte[] signature = signer.sign();
+        Signature verifier = Signature.getInstance(sigAlgName);
+        verifier.initVerify(newCert.getPublicKey());
+        verifier.update(challenge);
+        if (!verifier.verify(signature))
+        {
+            throw new InvalidKeyException(
+                "Private key does not match certificate");
+        }
+        this.keyPair = newKeyPair;
+        this.keyProvider = signer.getProvider().getName();
+        this.cert = newCert;
+        this.issuerChain = new X509Certificate[chain.length - 1];
+        System.arraycopy(chain, 1, this.issuerChain, 0, chain.length - 1);
+        this.requestPEM = null;
+    }
+
     /**
      * Write this credential, in a format suitable for Globus, to the current
      * user's default proxy file.
@@ -242,39 +581,28 @@ public class Credential
     public void writeToFile(String path, char[] passphrase)
             throws IOException, CertificateException
     {
-        File outFile = new File(path);
-
-        outFile.delete();
-        // Argh. small time window here where file could be opened()
-        // unless umask is set correctly.
-        //
-        // XXX Java 7 allows for attributes in the Create File call which
-        // should be used here to prevent race condition.
-        // http://java.sun.com/docs/books/tutorial/essential/io/fileAttr.html#posix
-        outFile.createNewFile();
-
-        setOwnerAccessOnly(outFile);
-
-        // Find a trusted security Provider that can encrypt the key if needed
-        String providerName = null;
-        try {
-            Cipher c = Cipher.getInstance("DES/CBC/NoPadding");
-            Provider p = c.getProvider();
-            providerName = p.getName();
-        } catch (Exception e) {
-        }
-
-        FileWriter fw = new FileWriter(outFile);
-        PEMWriter pemWriter = new PEMWriter(fw, providerName);
+        // Build the whole file in memory so it can be written at once
+        StringWriter out = new StringWriter();
+        PEMWriter pemWriter = new PEMWriter(out);
         pemWriter.writeObject(cert);
+        PrivateKey privateKey = keyPair.getPrivate();
         if (passphrase != null && passphrase.length > 0) {
-            pemWriter.writeObject(keyPair.getPrivate(), "DES-EDE3-CBC",
-                    passphrase, new SecureRandom());
+            pemWriter.flush();
+            out.write(Credential.keyEncryptor.encryptToPEM(privateKey,
+                    passphrase));
+        } else if (privateKey instanceof RSAPrivateKey) {
+            pemWriter.writeObject(privateKey);
         } else {
-            pemWriter.writeObject(keyPair.getPrivate());
+            // PEMWriter only knows RSA and DSA keys, so write anything
+            // else (i.e. EC) as PKCS8, which OpenSSL reads just as well.
+            pemWriter.flush();
+            out.write(PEMEncoder.encodePKCS8PrivateKey(privateKey));
+        }
+        for (int i = 0; i < this.issuerChain.length; i++) {
+            pemWriter.writeObject(this.issuerChain[i]);
         }
         pemWriter.close();
-        fw.close();
+        CredentialFileWriter.write(path, out.toString().getBytes("US-ASCII"));
     }
 
     /**
@@ -289,28 +617,14 @@ public class Credential
                    NoSuchAlgorithmException, CertificateException
     {
         KeyStore keyStore = KeyStore.getInstance("pkcs12");
-        Certificate[] chain = new Certificate[] { cert };
+        Certificate[] chain = this.getCertificateChain();
         keyStore.load(null, password);
-        keyStore.setKeyEntry("default", this.keyPair.getPrivate(), password,
-                chain);
-        File outFile = new File(path);
-        outFile.delete();
-        outFile.createNewFile();
-        setOwnerAccessOnly(outFile);
-        FileOutputStream keyStoreOut = new FileOutputStream(outFile);
+        keyStore.setEntry("default",
+                new KeyStore.PrivateKeyEntry(this.keyPair.getPrivate(), chain),
+                Credential.keyEncryptor.getPKCS12Protection(password));
+        ByteArrayOutputStream keyStoreOut = new ByteArrayOutputStream();
         keyStore.store(keyStoreOut, password);
-        keyStoreOut.close();
-    }
-
-    /**
-     * Sets permissions on a given file to be only accessible by the current
-     * user.
-     */
-    private static void setOwnerAccessOnly(File f) {
-        f.setReadOnly();
-        f.setReadable(false, false);
-        f.setReadable(true);
-        f.setWritable(true);
+        CredentialFileWriter.write(path, keyStoreOut.toByteArray());
     }
 
 }
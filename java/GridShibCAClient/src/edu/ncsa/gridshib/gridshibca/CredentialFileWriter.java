@@ -0,0 +1,134 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+CredentialFileWriter.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Writes credential files so that nobody else can read them and nobody
+ * ever sees a partially written one.
+ *
+ * The complete contents are written with a single write to a temporary
+ * file in the target's directory, created with owner-only permissions
+ * (on POSIX file systems; elsewhere permissions are restricted right after
+ * creation), and then renamed over the target. Programs reading the
+ * credential, e.g. running Globus jobs, see either the old file or the
+ * new one.
+ */
+public class CredentialFileWriter
+{
+    // Flush file contents to disk before renaming?
+    private static boolean sync = false;
+
+    // Whether the default file system supports POSIX permissions
+    private static final boolean posix = FileSystems.getDefault()
+        .supportedFileAttributeViews().contains("posix");
+
+    /**
+     * Set whether written files are flushed to disk (fsync) before they
+     * replace the target. Slower, but survives a crash right after writing.
+     * @param value New value.
+     */
+    public static void setSync(boolean value)
+    {
+        sync = value;
+    }
+
+    /**
+     * Atomically replace the file at path with the given contents,
+     * readable and writable only by the current user.
+     * @param path Path of file to write.
+     * @param contents Complete contents of file.
+     * @throws java.io.IOException
+     */
+    public static void write(String path, byte[] contents)
+            throws IOException
+    {
+        Path target = new File(path).getAbsoluteFile().toPath();
+        Path tempFile = createOwnerOnlyTempFile(target);
+        try
+        {
+            FileChannel channel = FileChannel.open(tempFile,
+                    StandardOpenOption.WRITE);
+            try
+            {
+                ByteBuffer buffer = ByteBuffer.wrap(contents);
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer);
+                }
+                if (sync)
+                {
+                    channel.force(true);
+                }
+            } finally
+            {
+                channel.close();
+            }
+            try
+            {
+                Files.move(tempFile, target,
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(tempFile, target,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e)
+        {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Create an empty temporary file, accessible only by the current user,
+     * next to target so it can be renamed over it.
+     * @param target File the temporary file will replace.
+     * @return Path of temporary file.
+     * @throws java.io.IOException
+     */
+    private static Path createOwnerOnlyTempFile(Path target)
+            throws IOException
+    {
+        Path dir = target.getParent();
+        String prefix = "." + target.getFileName() + ".";
+        if (posix)
+        {
+            return Files.createTempFile(dir, prefix, ".tmp",
+                    PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        }
+        Path tempFile = Files.createTempFile(dir, prefix, ".tmp");
+        setOwnerAccessOnly(tempFile.toFile());
+        return tempFile;
+    }
+
+    /**
+     * Sets permissions on a given file to be only accessible by the current
+     * user.
+     */
+    private static void setOwnerAccessOnly(File f) {
+        f.setReadOnly();
+        f.setReadable(false, false);
+        f.setReadable(true);
+        f.setWritable(true);
+    }
+}
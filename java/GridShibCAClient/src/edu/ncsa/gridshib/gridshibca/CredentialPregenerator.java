@@ -0,0 +1,198 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+CredentialPregenerator.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Generates a key pair and signed certificate request in the background
+ * so that the expensive key generation overlaps with GUI startup and trust
+ * store setup instead of following them. It is started once the
+ * properties are parsed, so it uses the configured key and number of
+ * generators.
+ *
+ * Nothing here may log through GridShibCAClientLogger as generation can
+ * start before the GUI exists; timing is recorded and reported by the
+ * consumer instead.
+ */
+public class CredentialPregenerator
+{
+    // Single worker thread; it must not keep the application alive.
+    private static ExecutorService executor = null;
+
+    // Credential being generated, or null if none pending
+    private static Future<Credential> pending = null;
+
+    // Key algorithm and size of pending credential
+    private static String pendingKeyAlg = null;
+    private static int pendingKeySize = 0;
+
+    // Time spent generating, in milliseconds, or -1 if not done
+    private static volatile long generationMillis = -1;
+
+    /**
+     * Start generating a credential with the default key algorithm and size
+     * in the background if we are not already doing so.
+     */
+    public static synchronized void start()
+    {
+        start(Credential.getDefaultKeyAlg(), 0);
+    }
+
+    /**
+     * Start generating a credential in the background if we are not
+     * already doing so.
+     * @param keyAlg Key algorithm to use.
+     * @param keySize Key size to use, 0 for algorithm default.
+     */
+    public static synchronized void start(final String keyAlg, int keySize)
+    {
+        if (pending != null)
+        {
+            return;
+        }
+        final int size = (keySize > 0) ? keySize : Credential.getDefaultKeySize(keyAlg);
+        pendingKeyAlg = keyAlg;
+        pendingKeySize = size;
+        pending = getExecutor().submit(new Callable<Credential>()
+        {
+            public Credential call()
+                    throws Exception
+            {
+                long start = System.currentTimeMillis();
+                Credential cred = new Credential();
+                cred.genKeyPair(size, keyAlg);
+                // Sign the request now as well; it is cached by the
+                // credential.
+                cred.generatePEMCertificateRequest();
+                generationMillis = System.currentTimeMillis() - start;
+                return cred;
+            }
+        });
+    }
+
+    /**
+     * Take the pending credential, starting generation if it hasn't been
+     * started already. The caller owns the returned future; a subsequent
+     * call will start a new generation.
+     * @return Future for the generated credential.
+     */
+    public static synchronized Future<Credential> take()
+    {
+        return take(Credential.getDefaultKeyAlg(), 0);
+    }
+
+    /**
+     * Take a pending credential of the given key algorithm and size. If the
+     * credential being generated doesn't match, it is abandoned and a new
+     * one started.
+     * @param keyAlg Key algorithm required.
+     * @param keySize Key size required, 0 for algorithm default.
+     * @return Future for the generated credential.
+     */
+    public static synchronized Future<Credential> take(String keyAlg,
+                                                       int keySize)
+    {
+        int size = (keySize > 0) ? keySize : Credential.getDefaultKeySize(keyAlg);
+        if ((pending != null) &&
+                (!pendingKeyAlg.equalsIgnoreCase(keyAlg) || (pendingKeySize != size)))
+        {
+            cancel();
+        }
+        start(keyAlg, size);
+        Future<Credential> f = pending;
+        pending = null;
+        return f;
+    }
+
+    /**
+     * Abandon any pending generation, e.g. because an existing key is being
+     * reused instead.
+     */
+    public static synchronized void cancel()
+    {
+        if (pending != null)
+        {
+            pending.cancel(true);
+            pending = null;
+        }
+    }
+
+    /**
+     * Wait for a credential generated by this class.
+     * @param f Future returned by take().
+     * @return Credential with key pair and certificate request.
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    public static Credential await(Future<Credential> f)
+            throws IOException, GeneralSecurityException
+    {
+        try
+        {
+            return f.get();
+        } catch (InterruptedException e)
+        {
+            throw new IOException("Interrupted waiting for key generation");
+        } catch (ExecutionException e)
+        {
+            // Unwrap so callers see the original crypto/IO error
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GeneralSecurityException)
+            {
+                throw (GeneralSecurityException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Key generation failed", cause);
+        }
+    }
+
+    /**
+     * @return Milliseconds the last background generation took, or -1
+     * if it has not completed.
+     */
+    public static long getGenerationMillis()
+    {
+        return generationMillis;
+    }
+
+    /**
+     * @return Our executor, created on first use.
+     */
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "GridShibCA-keygen");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,234 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+FormEncoder.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encodes form values as an application/x-www-form-urlencoded body,
+ * byte for byte as URLEncoder.encode(value, "UTF-8") would, but straight
+ * into an output stream and with the body's length known before any of it
+ * is written, so a request can be sent with a fixed length.
+ */
+class FormEncoder
+{
+    private static final byte[] hexDigits =
+        "0123456789ABCDEF".getBytes();
+
+    // Values to encode, in order
+    private Map<String, String> values;
+
+    // Length of encoded body, computed on first use
+    private long length = -1;
+
+    /**
+     * @param values Names and values to encode.
+     */
+    FormEncoder(Map<String, String> values)
+    {
+        this.values = new LinkedHashMap<String, String>(values);
+    }
+
+    /**
+     * @return Length of the encoded body in bytes.
+     */
+    long getLength()
+    {
+        if (this.length < 0)
+        {
+            // One '=' per value and an '&' between each
+            long total = Math.max(0, 2 * this.values.size() - 1);
+            for (Map.Entry<String, String> entry : this.values.entrySet())
+            {
+                total += encodedLength(entry.getKey()) +
+                    encodedLength(entry.getValue());
+            }
+            this.length = total;
+        }
+        return this.length;
+    }
+
+    /**
+     * Write the encoded body. The stream is not flushed or closed.
+     * @param out Stream to write to.
+     * @throws java.io.IOException
+     */
+    void writeTo(OutputStream out)
+            throws IOException
+    {
+        byte[] buffer = new byte[4096];
+        int count = 0;
+        Iterator<Map.Entry<String, String>> entries =
+            this.values.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            Map.Entry<String, String> entry = entries.next();
+            count = encode(entry.getKey(), out, buffer, count);
+            count = put((byte) '=', out, buffer, count);
+            count = encode(entry.getValue(), out, buffer, count);
+            if (entries.hasNext())
+            {
+                count = put((byte) '&', out, buffer, count);
+            }
+        }
+        out.write(buffer, 0, count);
+    }
+
+    /**
+     * @param maxLength Maximum bytes of body to return.
+     * @return Start of the encoded body, for debugging, with the full
+     * length if it was truncated.
+     */
+    String toString(final int maxLength)
+    {
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        try
+        {
+            writeTo(new OutputStream()
+            {
+                public void write(int b)
+                {
+                    if (head.size() < maxLength)
+                    {
+                        head.write(b);
+                    }
+                }
+
+                public void write(byte[] b, int off, int len)
+                {
+                    head.write(b, off,
+                        Math.max(0, Math.min(len, maxLength - head.size())));
+                }
+            });
+        } catch (IOException e)
+        {
+            // Not thrown writing to memory
+        }
+        String s = new String(head.toByteArray());
+        return (head.size() < getLength()) ?
+            s + "... (" + getLength() + " bytes)" : s;
+    }
+
+    /**
+     * @return Encoded length of s in bytes.
+     */
+    private static long encodedLength(String s)
+    {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (isUnreserved(c) || (c == ' '))
+            {
+                length++;
+            } else if (c < 0x800)
+            {
+                length += (c < 0x80) ? 3 : 6;
+            } else if (Character.isHighSurrogate(c) &&
+                       (i + 1 < s.length()) &&
+                       Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                length += 12;
+                i++;
+            } else if (Character.isSurrogate(c))
+            {
+                length += 3; // Encoded as '?'
+            } else
+            {
+                length += 9;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encode s into buffer, writing buffer to out as it fills.
+     * @return Bytes now in buffer.
+     */
+    private static int encode(String s, OutputStream out, byte[] buffer,
+                              int count)
+            throws IOException
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (isUnreserved(c))
+            {
+                count = put((byte) c, out, buffer, count);
+            } else if (c == ' ')
+            {
+                count = put((byte) '+', out, buffer, count);
+            } else if (c < 0x80)
+            {
+                count = putEscaped(c, out, buffer, count);
+            } else if (c < 0x800)
+            {
+                count = putEscaped(0xc0 | (c >> 6), out, buffer, count);
+                count = putEscaped(0x80 | (c & 0x3f), out, buffer, count);
+            } else if (Character.isHighSurrogate(c) &&
+                       (i + 1 < s.length()) &&
+                       Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                count = putEscaped(0xf0 | (cp >> 18), out, buffer, count);
+                count = putEscaped(0x80 | ((cp >> 12) & 0x3f), out, buffer, count);
+                count = putEscaped(0x80 | ((cp >> 6) & 0x3f), out, buffer, count);
+                count = putEscaped(0x80 | (cp & 0x3f), out, buffer, count);
+            } else
+            {
+                // Unpaired surrogates encode as '?', as String.getBytes() does
+                if (Character.isSurrogate(c))
+                {
+                    count = putEscaped('?', out, buffer, count);
+                    continue;
+                }
+                count = putEscaped(0xe0 | (c >> 12), out, buffer, count);
+                count = putEscaped(0x80 | ((c >> 6) & 0x3f), out, buffer, count);
+                count = putEscaped(0x80 | (c & 0x3f), out, buffer, count);
+            }
+        }
+        return count;
+    }
+
+    private static int putEscaped(int b, OutputStream out, byte[] buffer,
+                                  int count)
+            throws IOException
+    {
+        count = put((byte) '%', out, buffer, count);
+        count = put(hexDigits[(b >> 4) & 0xf], out, buffer, count);
+        return put(hexDigits[b & 0xf], out, buffer, count);
+    }
+
+    private static int put(byte b, OutputStream out, byte[] buffer, int count)
+            throws IOException
+    {
+        if (count == buffer.length)
+        {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        buffer[count] = b;
+        return count + 1;
+    }
+
+    /**
+     * @return True if URLEncoder leaves c as is.
+     */
+    private static boolean isUnreserved(char c)
+    {
+        return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) ||
+            ((c >= '0') && (c <= '9')) ||
+            (c == '.') || (c == '-') || (c == '*') || (c == '_');
+    }
+}
@@ -74,6 +74,36 @@ public class GridShibCAClientApp
     protected void initialize(String[] args)
     {
         arguments = args;
+        // Key generation is our slowest step, so get it going now in
+        // parallel with GUI startup and networking initialization. Parse
+        // our properties first so it uses the configured key and number
+        // of generators; the retriever parses them again and reports any
+        // error.
+        try
+        {
+            GridShibCAProperties.init();
+            GridShibCAProperties.parseArguments(args);
+            Credential.useRacingKeyPairEngine(
+                    GridShibCAProperties.getPropertyAsInt("KeyGenThreads"));
+            CredentialPregenerator.start(
+                    GridShibCAProperties.getProperty("KeyAlgorithm"),
+                    GridShibCAProperties.getPropertyAsInt("KeySize"));
+        } catch (Exception e)
+        {
+            CredentialPregenerator.start();
+        }
+    }
+
+    /**
+     * Called on exit, including from the Exit button while we're still
+     * working: abandon any key generation and server requests in progress.
+     */
+    @Override
+    protected void shutdown()
+    {
+        GridShibCAURL.cancelAll();
+        CredentialPregenerator.cancel();
+        super.shutdown();
     }
 
     /**
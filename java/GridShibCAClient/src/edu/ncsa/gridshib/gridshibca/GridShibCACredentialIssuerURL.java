@@ -10,16 +10,19 @@ Please see LICENSE at the root of the distribution.
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
 import java.lang.Integer;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
 import java.security.cert.CertificateException;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * URL representing GridShibCA Server.
@@ -28,6 +31,8 @@ public class GridShibCACredentialIssuerURL extends GridShibCAURL
 {
     private String authenticationToken;
     private Credential cred = null;
+    // Credential being generated in the background
+    private Future<Credential> pendingCred = null;
 
     /**
      *
@@ -53,19 +58,63 @@ public class GridShibCACredentialIssuerURL extends GridShibCAURL
 
     /**
      * Generate a key pair in preparation for requesting a certificate.
-     * @throws java.io.IOException
-     * @throws NoSuchAlgorithmException
-     * @throws CertificateException
-     * @throws NoSuchProviderException
-     * @throws SignatureException
-     * @throws InvalidKeyException
+     * Generation happens in the background (and may already be under way
+     * from CredentialPregenerator.start()); requestCredential() waits for
+     * it to complete.
      */
     public void genKeyPair()
-        throws IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException, SignatureException, InvalidKeyException
     {
-        GridShibCAClientLogger.debugMessage("Generating keypair");
-        cred = new Credential();
-        cred.genKeyPair();
+        genKeyPair(Credential.getDefaultKeyAlg(), 0);
+    }
+
+    /**
+     * Generate a key pair of the given algorithm and size in preparation
+     * for requesting a certificate.
+     * @param keyAlg Key algorithm ("RSA" or "EC").
+     * @param keySize Key size, 0 for the algorithm's default.
+     */
+    public void genKeyPair(String keyAlg, int keySize)
+    {
+        GridShibCAClientLogger.debugMessage("Generating " + keyAlg + " keypair");
+        cred = null;
+        pendingCred = CredentialPregenerator.take(keyAlg, keySize);
+    }
+
+    /**
+     * Use the key pair of an existing credential, e.g. one loaded from the
+     * user's proxy file, instead of generating a new one. Only a new
+     * certificate will be requested.
+     * @param existing Credential holding the key pair to reuse.
+     */
+    public void setCredential(Credential existing)
+    {
+        GridShibCAClientLogger.debugMessage("Reusing existing " +
+                existing.getKeyAlgorithm() + " keypair");
+        CredentialPregenerator.cancel();
+        pendingCred = null;
+        cred = existing;
+    }
+
+    /**
+     * Wait for the key pair started by genKeyPair() to be ready.
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    private void waitForKeyPair()
+        throws IOException, GeneralSecurityException
+    {
+        if (pendingCred == null)
+        {
+            this.genKeyPair();
+        }
+        if (!pendingCred.isDone())
+        {
+            GridShibCAClientLogger.debugMessage("Waiting for keypair generation to complete");
+        }
+        cred = CredentialPregenerator.await(pendingCred);
+        pendingCred = null;
+        GridShibCAClientLogger.debugMessage("Keypair generated in " +
+                CredentialPregenerator.getGenerationMillis() + " ms");
     }
 
     /**
@@ -78,30 +127,63 @@ public class GridShibCACredentialIssuerURL extends GridShibCAURL
      * @throws NoSuchProviderException
      * @throws SignatureException
      * @throws InvalidKeyException
+     * @throws GeneralSecurityException
      */
     public Credential requestCredential(int lifetime)
-        throws IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException, SignatureException, InvalidKeyException
+        throws IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException, SignatureException, InvalidKeyException, GeneralSecurityException
     {
         if (cred == null) {
-            this.genKeyPair();
+            this.waitForKeyPair();
         }
 
         GridShibCAClientLogger.debugMessage("Generating certificate request");
         String requestPEM = cred.generatePEMCertificateRequest();
 
+        // Use the pre-warmed connection, if any, rather than racing it
+        awaitPrewarm();
         GridShibCAClientLogger.debugMessage("Connecting to server");
-        this.openConnection();
-
-        GridShibCAClientLogger.debugMessage("Writing certificate request");
-        this.writeRequest(requestPEM, lifetime);
+        long start = System.currentTimeMillis();
+        try
+        {
+            this.openConnection();
 
-        GridShibCAClientLogger.debugMessage("Reading certificate");
-        this.readCertificate(cred);
+            GridShibCAClientLogger.debugMessage("Writing certificate request");
+            this.writeRequest(requestPEM, lifetime);
 
-        this.closeConnection();
+            GridShibCAClientLogger.debugMessage("Reading certificate");
+            this.readCertificate(cred);
+        } catch (SocketTimeoutException e)
+        {
+            GridShibCAClientLogger.debugMessage("IssueCert timed out after " +
+                    (System.currentTimeMillis() - start) + " ms: " +
+                    e.getMessage());
+            throw e;
+        } finally
+        {
+            // Keeps the connection alive for a following TrustRoots request
+            this.closeConnection();
+        }
         return cred;
     }
 
+    /**
+     * Request a credential from the GridShibCA in the background.
+     * @param lifetime Requested lifetime in seconds (0 == default).
+     * @return Future for the credential; wait for it with
+     * GridShibCAURL.await().
+     */
+    public Future<Credential> requestCredentialAsync(final int lifetime)
+    {
+        return submit(new Callable<Credential>()
+        {
+            public Credential call()
+                    throws IOException, GeneralSecurityException
+            {
+                return requestCredential(lifetime);
+            }
+        });
+    }
+
     /**
      * Request a credential from the GridShibCA with default lifetime.
      * @return Credential object.
@@ -111,9 +193,10 @@ public class GridShibCACredentialIssuerURL extends GridShibCAURL
      * @throws NoSuchProviderException
      * @throws SignatureException
      * @throws InvalidKeyException
+     * @throws GeneralSecurityException
      */
     public Credential requestCredential()
-        throws IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException, SignatureException, InvalidKeyException
+        throws IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException, SignatureException, InvalidKeyException, GeneralSecurityException
     {
         return this.requestCredential(0);
     }
@@ -128,9 +211,7 @@ public class GridShibCACredentialIssuerURL extends GridShibCAURL
     private void writeRequest(String requestPEM, int lifetime)
         throws IOException
     {
-        OutputStreamWriter postWriter =
-                new OutputStreamWriter(this.conn.getOutputStream());
-        HashMap values = new HashMap();
+        HashMap<String, String> values = new HashMap<String, String>();
         values.put("command", "IssueCert");
         values.put("GRIDSHIBCA_SESSION_ID", this.authenticationToken);
         values.put("certificateRequest", requestPEM);
@@ -143,6 +224,8 @@ public class GridShibCACredentialIssuerURL extends GridShibCAURL
 
     /**
      * Read a certifcate in response to a request from GridShibCA server.
+     * Timeouts and failures other than an HTTP error status are thrown as
+     * they are; common error statuses are explained.
      * @param cred Credential object which generated request that certificate will be read into.
      * @throws java.io.IOException
      */
@@ -151,40 +234,27 @@ public class GridShibCACredentialIssuerURL extends GridShibCAURL
     {
         try
         {
-            InputStream credStream = this.conn.getInputStream();
+            InputStream credStream = this.getResponseStream();
             cred.readX509CertFromPEM(credStream);
-            credStream.close();
 
-        } catch (java.io.IOException e)
+        } catch (HTTPStatusException e)
         {
-            int statusCode;
-            String responseMessage;
-            try
-            {
-                statusCode = this.conn.getResponseCode();
-                responseMessage = this.conn.getResponseMessage();
-            } catch (IOException ex)
-            {
-                throw ex;
-            }
+            int statusCode = e.getStatus();
+            String responseMessage = this.conn.getResponseMessage();
             if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED)
             {
                 throw new IOException("Authentication failed: " +
-                        responseMessage);
+                        responseMessage, e);
             } else if (statusCode == HttpURLConnection.HTTP_BAD_REQUEST)
             {
                 throw new IOException("Request malformed: " +
-                        responseMessage);
+                        responseMessage, e);
             } else if (statusCode == HttpURLConnection.HTTP_INTERNAL_ERROR)
             {
                 throw new IOException("Internal server error: " +
-                        responseMessage);
-            } else
-            {
-                throw new IOException("Server returned error status " +
-                        statusCode + ":" +
-                        responseMessage);
+                        responseMessage, e);
             }
+            throw e;
         }
     }
 }
\ No newline at end of file
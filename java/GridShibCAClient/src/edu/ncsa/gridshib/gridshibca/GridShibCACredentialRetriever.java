@@ -8,9 +8,13 @@ Copyright 2006-2010 The Board of Trustees of the University of Illinois.
 Please see LICENSE at the root of the distribution.
 */
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.concurrent.Future;
+import org.globus.util.ConfigUtil;
 
 /**
  * The main class of the application.
@@ -68,6 +72,12 @@ public class GridShibCACredentialRetriever
         }
         debug("Properties:\n" + GridShibCAProperties.dumpToString());
 
+        // Normally already set up by GridShibCAClientApp.initialize() for
+        // the pregenerated key; one already under way keeps its settings.
+        RacingKeyPairEngine keyPairEngine = Credential.useRacingKeyPairEngine(
+                GridShibCAProperties.getPropertyAsInt("KeyGenThreads"));
+        debug("Racing " + keyPairEngine.getRacers() + " RSA key generators.");
+
         if (GridShibCAProperties.getPropertyAsBoolean("TestLaunch"))
         {
             debug("TestLaunch is True");
@@ -86,6 +96,9 @@ public class GridShibCACredentialRetriever
         }
 
         debug("Retrieving Credential.");
+        // Let the user give up on a slow server; exiting cancels any
+        // requests in progress.
+        view.enableExitButton();
 
         try
         {
@@ -118,11 +131,59 @@ public class GridShibCACredentialRetriever
             return;
         }
 
+        // Connect to the server while we generate keys; the certificate
+        // request then goes over the warm connection.
+        if (GridShibCAProperties.getPropertyAsBoolean("PrewarmConnection"))
+        {
+            try
+            {
+                GridShibCAURL.prewarm(
+                    GridShibCAProperties.getPropertyAsURL("WebAppURL"));
+            } catch (java.net.MalformedURLException e)
+            {
+                fatalError("Error parsing GridShib-CA URL", e);
+                return;
+            }
+        }
+
+        // Trust roots don't depend on our certificate, so fetch them while
+        // we generate keys and wait for the certificate. They are fetched
+        // even though getting the certificate may yet fail, in which case
+        // fatalError() cancels the fetch.
+        Future<Void> trustRootsRequest = null;
+        if (GridShibCAProperties.getPropertyAsBoolean("DownloadCAs"))
+        {
+            try
+            {
+                URL gridshibCAURL = GridShibCAProperties.getPropertyAsURL("WebAppURL");
+                trustRootsRequest =
+                    new GridShibCATrustRootsURL(gridshibCAURL).getTrustRootsAsync();
+            } catch (java.net.MalformedURLException e)
+            {
+                error("Could not parse web application URL", e);
+                return;
+            }
+        }
+
         try
         {
             int lifetime = GridShibCAProperties.getPropertyAsInt("lifetime");
-            this.message("Generating keys...");
-            credIssuerURL.genKeyPair();
+            String keyAlg = GridShibCAProperties.getProperty("KeyAlgorithm");
+            Credential existing = null;
+            if (GridShibCAProperties.getPropertyAsBoolean("ReuseKey"))
+            {
+                existing = loadExistingCredential(keyAlg);
+            }
+            if (existing != null)
+            {
+                this.message("Reusing existing keys...");
+                credIssuerURL.setCredential(existing);
+            } else
+            {
+                this.message("Generating keys...");
+                credIssuerURL.genKeyPair(keyAlg,
+                        GridShibCAProperties.getPropertyAsInt("KeySize"));
+            }
             this.message("Requesting certificate...");
             credential = credIssuerURL.requestCredential(lifetime);
         } catch (javax.net.ssl.SSLHandshakeException e)
@@ -160,10 +221,19 @@ public class GridShibCACredentialRetriever
         }
 
         this.message("Writing credentials to local file...");
+        CredentialFileWriter.setSync(
+                GridShibCAProperties.getPropertyAsBoolean("SyncCredentialFiles"));
         try
         {
             String proxyFile = null, pkcs12File = null;
 
+            PrivateKeyEncryptor keyEncryptor = new PrivateKeyEncryptor(
+                    GridShibCAProperties.getProperty("KeyEncryption"),
+                    GridShibCAProperties.getPropertyAsInt("KeyEncryptionIterations"));
+            Credential.setKeyEncryptor(keyEncryptor);
+            this.debug("Encrypting private key with " + keyEncryptor.getScheme() +
+                    " scheme (" + keyEncryptor.getIterations() + " iterations)");
+
             proxyFile = credential.writeToDefaultProxyFile(passphrase);
             this.debug("Credential written to: " + proxyFile);
             view.showCredentialLocation(proxyFile);
@@ -182,18 +252,12 @@ public class GridShibCACredentialRetriever
         this.message("Certificate written to file.");
         view.displayCredentalInfo(credential);
 
-        if (GridShibCAProperties.getPropertyAsBoolean("DownloadCAs"))
+        if (trustRootsRequest != null)
         {
             try
             {
                 message("Downloading CAs...");
-                URL gridshibCAURL = GridShibCAProperties.getPropertyAsURL("WebAppURL");
-                GridShibCATrustRootsURL trustRootsURL = new GridShibCATrustRootsURL(gridshibCAURL);
-                trustRootsURL.getTrustRoots();
-            } catch (java.net.MalformedURLException e)
-            {
-                error("Could not parse web application URL", e);
-                return;
+                GridShibCAURL.await(trustRootsRequest);
             } catch (Exception e)
             {
                 error("Error retrieving trusted CAs: " + e.toString(), e);
@@ -225,12 +289,75 @@ public class GridShibCACredentialRetriever
             }
         }
 
+        logNetworkSummary();
         this.message("Done!");
         view.doneLabel.setEnabled(true);
         view.displaySuccess();
         view.enableExitButton();
     }
 
+    /**
+     * Load the credential from a previous run so its key can be reused.
+     * The default proxy file is tried first; if its key is encrypted (or
+     * it is missing) the accompanying PKCS12 file is tried, prompting for
+     * its passphrase.
+     * @param keyAlg Key algorithm the existing key must have.
+     * @return Credential, or null if no usable key was found.
+     */
+    private Credential loadExistingCredential(String keyAlg)
+    {
+        String proxyPath = ConfigUtil.discoverProxyLocation();
+        String pkcs12Path = proxyPath.concat(".p12");
+        Credential existing = new Credential();
+        try
+        {
+            if (new File(proxyPath).exists())
+            {
+                debug("Reading existing key from " + proxyPath);
+                existing.readFromFile(proxyPath);
+            } else
+            {
+                existing = null;
+            }
+        } catch (Exception e)
+        {
+            debug("Cannot reuse key in " + proxyPath + ": " + e.getMessage());
+            existing = null;
+        }
+        if ((existing == null) && new File(pkcs12Path).exists())
+        {
+            this.message("Prompting for passphrase of existing key.");
+            char[] passphrase = view.getPassphrase();
+            if (passphrase != null)
+            {
+                existing = new Credential();
+                try
+                {
+                    debug("Reading existing key from " + pkcs12Path);
+                    existing.readFromPKCS12File(pkcs12Path, passphrase);
+                } catch (Exception e)
+                {
+                    debug("Cannot reuse key in " + pkcs12Path + ": " +
+                            e.getMessage());
+                    existing = null;
+                }
+                Arrays.fill(passphrase, ' ');
+            }
+        }
+        if ((existing != null) &&
+                !existing.getKeyAlgorithm().equalsIgnoreCase(keyAlg))
+        {
+            debug("Existing key is " + existing.getKeyAlgorithm() +
+                    " rather than " + keyAlg + ". Not reusing.");
+            existing = null;
+        }
+        if (existing == null)
+        {
+            debug("No reusable key found. Generating new keys.");
+        }
+        return existing;
+    }
+
     /**
      * Display a message to the user.
      * @param msg Message to display.
@@ -273,9 +400,24 @@ public class GridShibCACredentialRetriever
      */
     private void error(String msg, Exception ex)
     {
+        logNetworkSummary();
         view.error(msg, ex);
     }
 
+    /**
+     * Log how our requests to the server went, including a JSON summary
+     * of where the time for each went, so reports of a slow client can
+     * be diagnosed from the debug log.
+     */
+    private void logNetworkSummary()
+    {
+        if (GridShibCAURL.getRequestCount() > 0)
+        {
+            debug(GridShibCAURL.connectionSummary());
+            debug("Network timing summary: " + GridShibCAURL.timingSummary());
+        }
+    }
+
     /**
      * Handle a fatal error. Does not return.
      * @param msg Message.
@@ -286,12 +428,15 @@ public class GridShibCACredentialRetriever
     }
 
     /**
-     * Handle a fatal error with casual exeption. Does not return.
+     * Handle a fatal error with casual exeption. Does not return. Requests
+     * still running in the background, e.g. TrustRoots, are cancelled, as
+     * nothing more will be done.
      * @param msg Message.
      * @param ex Exception.
      */
     private void fatalError(String msg, Exception ex)
     {
+        GridShibCAURL.cancelAll();
         error(msg, ex);
     }
 
@@ -39,7 +39,28 @@ public class GridShibCAProperties
         "TestLaunch", // Just test launch and exit
         "lifetime", // Requested credential lifetime
         "minPassphraseLength", // for encrypting private keys
-        "maxCleartextLifetime" // max seconds before passphrase required
+        "maxCleartextLifetime", // max seconds before passphrase required
+        "KeyAlgorithm", // "RSA" or "EC"
+        "KeySize", // Key size in bits (curve size for EC), 0 == default
+        "ReuseKey", // Renew using key in existing proxy/.p12 file if possible
+        "KeyGenThreads", // RSA generators to race, 0 == one per core but one
+        "SyncCredentialFiles", // fsync credential files before replacing
+        "KeyEncryption", // Private key encryption: "legacy" or "AES256"
+        "KeyEncryptionIterations", // PBKDF2 iterations for AES256, 0 == default
+        "ConnectTimeout", // Seconds to wait for a connection, 0 == forever
+        "ReadTimeout", // Seconds to wait for server data, 0 == forever
+        "Deadline", // Seconds all server requests must finish in, 0 == none
+        "TrustRootsRetries", // Times to retry a failed TrustRoots request
+        "LogPostBody", // Bytes of request bodies to debug log, 0 == none
+        "PrewarmConnection", // Connect to server while generating keys
+        "TCPNoDelay", // Disable Nagle's algorithm on server connections
+        "SocketSendBuffer", // Socket send buffer bytes, 0 == system default
+        "SocketReceiveBuffer", // Socket receive buffer bytes, 0 == default
+        "TLSProtocols", // TLS protocols to enable, or "default"
+        "TLSCipherSuites", // Cipher suites to offer, "fast" or "default"
+        "TrustRootsWriters", // Threads writing trust root files
+        "TrustRootsFormats", // Archive formats to ask for trust roots in
+        "IndexTrustRoots" // Create subject hash links for trust roots
     };
 
     /**
@@ -60,6 +81,28 @@ public class GridShibCAProperties
         properties.setProperty("lifetime", "0"); // 0 == default
         properties.setProperty("minPassphraseLength", "12"); // IGTF standard
         properties.setProperty("maxCleartextLifetime", "1000000"); // IGTF std
+        properties.setProperty("KeyAlgorithm", "RSA");
+        properties.setProperty("KeySize", "0"); // 0 == default for algorithm
+        properties.setProperty("ReuseKey", "false");
+        properties.setProperty("KeyGenThreads", "0"); // 0 == one per core but one
+        properties.setProperty("SyncCredentialFiles", "false");
+        properties.setProperty("KeyEncryption", "legacy");
+        properties.setProperty("KeyEncryptionIterations", "0"); // 0 == default
+        properties.setProperty("ConnectTimeout", "30");
+        properties.setProperty("ReadTimeout", "60");
+        properties.setProperty("Deadline", "300");
+        properties.setProperty("TrustRootsRetries", "3");
+        properties.setProperty("LogPostBody", "0");
+        properties.setProperty("PrewarmConnection", "true");
+        properties.setProperty("TCPNoDelay", "true");
+        properties.setProperty("SocketSendBuffer", "0");
+        properties.setProperty("SocketReceiveBuffer", "0");
+        properties.setProperty("TLSProtocols", "TLSv1.3,TLSv1.2");
+        properties.setProperty("TLSCipherSuites", "fast");
+        properties.setProperty("TrustRootsWriters", "4");
+        properties.setProperty("TrustRootsFormats", "tar,zip");
+        properties.setProperty("IndexTrustRoots", "true");
+        properties.setProperty("TrustStorePassword", ""); // none
         
         // Load from our JWS Jar
         properties.load(propertiesResource.asStream());
@@ -146,7 +189,8 @@ public class GridShibCAProperties
      * Parse command line arguments and set properties based on those
      * arguments. These should all be of the form "variable=value".
      * 
-     * Known variables are defined in knownArguments.
+     * Known variables are defined in knownArguments. An empty value leaves
+     * the default in place.
      *
      * @param args Arguments from the commandline.
      * @throws java.lang.IllegalArgumentException
@@ -183,7 +227,10 @@ public class GridShibCAProperties
 
             if (argumentSet.contains(var))
             {
-                properties.setProperty(var, value);
+                if (value.length() > 0)
+                {
+                    properties.setProperty(var, value);
+                }
             } else
             {
                 throw new IllegalArgumentException(
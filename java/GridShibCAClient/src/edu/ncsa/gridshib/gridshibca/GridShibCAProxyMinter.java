@@ -0,0 +1,239 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+GridShibCAProxyMinter.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.globus.util.ConfigUtil;
+
+/**
+ * Command line entry point that mints a batch of proxy credentials from
+ * the credential written by GridShibCACredentialRetriever, for job
+ * submitters that need one delegated credential per job.
+ *
+ * Usage:
+ * <pre>
+ * java -cp GridShibCA.jar edu.ncsa.gridshib.gridshibca.GridShibCAProxyMinter
+ *     [-credential file] (-count n [-dir dir] | -manifest file)
+ *     [-lifetime hours] [-policy inheritAll|limited|independent|oid]
+ *     [-pathlen n] [-keyalg RSA|EC] [-keysize bits] [-threads n]
+ * </pre>
+ * The credential defaults to the .p12 file next to the user's default
+ * proxy; its passphrase is read from the console. A PEM proxy file with an
+ * unencrypted key may be given instead. A manifest lists one output path
+ * per line, relative paths being taken relative to the manifest; blank
+ * lines and lines starting with # are ignored.
+ */
+public class GridShibCAProxyMinter
+{
+    private static final String usage =
+        "Usage: GridShibCAProxyMinter [-credential file]" +
+        " (-count n [-dir dir] | -manifest file)\n" +
+        "    [-lifetime hours] [-policy inheritAll|limited|independent|oid]\n" +
+        "    [-pathlen n] [-keyalg RSA|EC] [-keysize bits] [-threads n]";
+
+    public static void main(String[] args)
+    {
+        String credentialPath = ConfigUtil.discoverProxyLocation() + ".p12";
+        int count = -1;
+        String dir = ".";
+        String manifest = null;
+        int threads = 0;
+        ProxyCertificateGenerator generator = new ProxyCertificateGenerator();
+        String keyAlg = null;
+        int keySize = 0;
+
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                String option = args[i];
+                if (i + 1 >= args.length)
+                {
+                    usageError("Missing value for " + option);
+                }
+                String value = args[++i];
+                if (option.equals("-credential"))
+                {
+                    credentialPath = value;
+                } else if (option.equals("-count"))
+                {
+                    count = Integer.parseInt(value);
+                } else if (option.equals("-dir"))
+                {
+                    dir = value;
+                } else if (option.equals("-manifest"))
+                {
+                    manifest = value;
+                } else if (option.equals("-lifetime"))
+                {
+                    generator.setLifetime(
+                        (long) (Double.parseDouble(value) * 3600));
+                } else if (option.equals("-policy"))
+                {
+                    generator.setPolicy(value);
+                } else if (option.equals("-pathlen"))
+                {
+                    generator.setPathLength(Integer.parseInt(value));
+                } else if (option.equals("-keyalg"))
+                {
+                    keyAlg = value;
+                } else if (option.equals("-keysize"))
+                {
+                    keySize = Integer.parseInt(value);
+                } else if (option.equals("-threads"))
+                {
+                    threads = Integer.parseInt(value);
+                } else
+                {
+                    usageError("Unknown option " + option);
+                }
+            }
+        } catch (IllegalArgumentException e)
+        {
+            usageError(e.getMessage());
+        }
+        if ((count < 0) == (manifest == null))
+        {
+            usageError("Exactly one of -count and -manifest is required");
+        }
+        generator.setKeyAlgorithm(keyAlg, keySize);
+
+        try
+        {
+            List<String> paths = (manifest != null) ?
+                readManifest(manifest) : numberedPaths(dir, count);
+            Credential issuer = readCredential(credentialPath);
+            ProxyMinter minter = new ProxyMinter(issuer, generator, threads);
+            System.out.println("Minting " + paths.size() + " proxies from " +
+                issuer.getSubjectGlobusFormat() + " with " +
+                minter.getThreads() + " threads");
+            ProxyMinter.Statistics stats = minter.mint(paths);
+            System.out.println(stats);
+        } catch (Exception e)
+        {
+            System.err.println("Error minting proxies: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Read the issuing credential from a PKCS12 file, prompting for its
+     * passphrase, or from a PEM file.
+     */
+    private static Credential readCredential(String path)
+            throws Exception
+    {
+        Credential credential = new Credential();
+        if (path.endsWith(".p12"))
+        {
+            char[] passphrase = readPassphrase("Passphrase for " + path + ": ");
+            credential.readFromPKCS12File(path, passphrase);
+            java.util.Arrays.fill(passphrase, ' ');
+        } else
+        {
+            credential.readFromFile(path);
+        }
+        return credential;
+    }
+
+    /**
+     * Read a passphrase from the console without echo, or from standard
+     * input if there is no console (e.g. when piped).
+     */
+    private static char[] readPassphrase(String prompt)
+            throws IOException
+    {
+        Console console = System.console();
+        if (console != null)
+        {
+            char[] passphrase = console.readPassword("%s", prompt);
+            if (passphrase != null)
+            {
+                return passphrase;
+            }
+        } else
+        {
+            System.err.print(prompt);
+            String line = new BufferedReader(
+                new InputStreamReader(System.in)).readLine();
+            if (line != null)
+            {
+                return line.toCharArray();
+            }
+        }
+        throw new IOException("No passphrase given");
+    }
+
+    /**
+     * @return Output paths listed in the manifest.
+     */
+    private static List<String> readManifest(String manifest)
+            throws IOException
+    {
+        File base = new File(manifest).getAbsoluteFile().getParentFile();
+        List<String> paths = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(manifest));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if ((line.length() == 0) || line.startsWith("#"))
+                {
+                    continue;
+                }
+                File file = new File(line);
+                if (!file.isAbsolute())
+                {
+                    file = new File(base, line);
+                }
+                paths.add(file.getPath());
+            }
+        } finally
+        {
+            reader.close();
+        }
+        return paths;
+    }
+
+    /**
+     * @return count paths named proxy-NNNNN.pem in dir.
+     */
+    private static List<String> numberedPaths(String dir, int count)
+            throws IOException
+    {
+        File directory = new File(dir);
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Could not create directory " + dir);
+        }
+        List<String> paths = new ArrayList<String>(count);
+        for (int i = 1; i <= count; i++)
+        {
+            paths.add(new File(directory,
+                String.format("proxy-%05d.pem", i)).getPath());
+        }
+        return paths;
+    }
+
+    private static void usageError(String message)
+    {
+        System.err.println(message);
+        System.err.println(usage);
+        System.exit(2);
+    }
+}
@@ -8,13 +8,15 @@ Copyright 2006-2009 The Board of Trustees of the University of Illinois.
 Please see LICENSE at the root of the distribution.
 */
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import org.globus.util.ConfigUtil;
 
 /**
@@ -23,75 +25,262 @@ import org.globus.util.ConfigUtil;
 public class GridShibCATrustRootsURL
         extends GridShibCAURL
 {
-    // String used to separate files in stream
-    private String prefix = "-----File:";
+    // Name of our trust roots manifest in the user's Globus directory
+    private static final String manifestName = "gridshib-ca-trustroots.manifest";
+
+    // Bytes of trust roots that may wait for a writer thread
+    private static final int maxQueuedBytes = 4 * 1024 * 1024;
 
     public GridShibCATrustRootsURL(URL url)
     {
         super(url);
     }
 
+    /**
+     * Fetch trust roots in the background, once any connection pre-warm
+     * has finished so the request can use its connection or TLS session.
+     * @return Future that completes once trust roots have been written;
+     * wait for it with GridShibCAURL.await().
+     */
+    public Future<Void> getTrustRootsAsync()
+    {
+        return submit(new Callable<Void>()
+        {
+            public Void call()
+                    throws IOException
+            {
+                awaitPrewarm();
+                getTrustRoots();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Fetch trust roots from the server and write any we don't have, or
+     * that have changed since we wrote them, to the user's trusted CA
+     * directory. A manifest of what we wrote lets the server send only
+     * files that changed, or nothing at all if none did. Files we didn't
+     * write are left alone. Failed fetches are retried, up to the
+     * TrustRootsRetries property times, after a jittered exponential
+     * backoff. HTTP client errors (4xx) are not retried.
+     * @throws java.io.IOException
+     */
     public void getTrustRoots()
             throws IOException
     {
         File trustedCAPath = getUserCADir();
         GridShibCAClientLogger.debugMessage("Writing trusted CAs to " + trustedCAPath);
+        TrustRootsManifest manifest = TrustRootsManifest.load(
+                new File(ConfigUtil.globus_dir, manifestName));
+        List<String> dropped = manifest.verify(trustedCAPath);
+        if (!dropped.isEmpty())
+        {
+            GridShibCAClientLogger.debugMessage("Trust roots missing or changed since written: " +
+                    dropped);
+        }
+        GridShibCAClientLogger.debugMessage("Have " + manifest.size() +
+                " trust roots from previous runs");
 
-
-        GridShibCAClientLogger.debugMessage("Writing request to server for trust roots...");
-        this.openConnection();
-        this.writeRequest();
-
-        GridShibCAClientLogger.debugMessage("Reading trust roots...");
-        BufferedReader trustedCAStream =
-                new BufferedReader(new InputStreamReader(this.conn.getInputStream()));
-        String line;
-        FileOutputStream out = null;
-        while ((line = trustedCAStream.readLine()) != null)
+        int retries = GridShibCAProperties.getPropertyAsInt("TrustRootsRetries");
+        for (int attempt = 1; ; attempt++)
         {
-            if (line.startsWith(prefix))
+            long start = System.currentTimeMillis();
+            try
+            {
+                this.fetchTrustRoots(trustedCAPath, manifest);
+                return;
+            } catch (IOException e)
             {
-                // Start of new file
-                File origFile = new File(line.substring(prefix.length()).trim());
-                if (out != null)
+                long elapsed = System.currentTimeMillis() - start;
+                String failure = "TrustRoots attempt " + attempt +
+                        " failed after " + elapsed + " ms" +
+                        ((remainingMillis() <= 0) ? " (deadline)" :
+                         (e instanceof SocketTimeoutException) ? " (timeout)" : "") +
+                        ": " + e.getMessage();
+                boolean clientError = (e instanceof HTTPStatusException) &&
+                        (((HTTPStatusException) e).getStatus() < 500);
+                long delay = backoff(attempt);
+                if (clientError || (attempt > retries) || (delay < 0))
                 {
-                    out.close();
-                    out = null;
+                    GridShibCAClientLogger.debugMessage(failure + "; giving up");
+                    throw e;
                 }
-                File file = new File(trustedCAPath + File.separator + origFile.getName());
-                if (file.exists())
+                GridShibCAClientLogger.debugMessage(failure + "; retrying in " +
+                        delay + " ms");
+                try
                 {
-                    GridShibCAClientLogger.debugMessage("File " + file + " already exists. Skipping.");
-                } else
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie)
                 {
-                    GridShibCAClientLogger.debugMessage("Writing " + file);
-                    out = new FileOutputStream(file);
+                    throw new IOException("Interrupted retrying TrustRoots");
                 }
+            }
+        }
+    }
+
+    /**
+     * Make one request for trust roots and write any that changed.
+     * @param trustedCAPath Directory to write trust roots to.
+     * @param manifest Trust roots we have written.
+     * @throws java.io.IOException
+     */
+    private void fetchTrustRoots(File trustedCAPath,
+                                 TrustRootsManifest manifest)
+            throws IOException
+    {
+        GridShibCAClientLogger.debugMessage("Writing request to server for trust roots...");
+        this.openConnection();
+        try
+        {
+            // The concatenated PEM files compress several times over
+            this.acceptCompressed();
+            this.writeRequest(manifest);
+            if (this.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+            {
+                GridShibCAClientLogger.debugMessage("Trust roots unchanged since last fetched.");
+                return;
+            }
+            this.readTrustRoots(trustedCAPath, manifest);
+        } finally
+        {
+            this.closeConnection();
+        }
+    }
+
+    /**
+     * Read trust roots from the response, as an archive or the text
+     * stream, and write any that changed, with the TrustRootsWriters
+     * property number of threads writing files while the response is
+     * read. Each file is written to a temporary file and then moved into
+     * place, so a failed read never leaves a truncated file behind. If
+     * any were written the directory is then indexed by subject hash,
+     * unless the IndexTrustRoots property is false.
+     * @param trustedCAPath Directory to write trust roots to.
+     * @param manifest Trust roots we have written, updated with what we
+     * write and stored when done.
+     * @throws java.io.IOException
+     */
+    private void readTrustRoots(File trustedCAPath,
+                                TrustRootsManifest manifest)
+            throws IOException
+    {
+        String format = TrustRootsArchive.formatOf(
+                this.getResponseHeader("Content-Type"));
+        GridShibCAClientLogger.debugMessage("Reading trust roots" +
+                ((format != null) ? " as " + format : "") + "...");
+        long start = System.currentTimeMillis();
+        TrustRootsWritePipeline writer = new TrustRootsWritePipeline(
+                trustedCAPath, manifest,
+                Math.max(1, GridShibCAProperties.getPropertyAsInt("TrustRootsWriters")),
+                maxQueuedBytes);
+        boolean finished = false;
+        // Until we've read the whole response our files don't match the
+        // server's ETag
+        manifest.setETag(null);
+        try
+        {
+            if (format != null)
+            {
+                TrustRootsArchive.extract(format, this.getResponseStream(), writer);
             } else
             {
-                // Line of data, output if we have a valid output file
-                if (out != null)
-                {
-                    String lineCR = line + "\n";
-                    out.write(lineCR.getBytes());
-                }
+                new TrustRootsParser(writer).parse(this.getResponseStream());
+            }
+            writer.finish();
+            finished = true;
+            manifest.setETag(this.getResponseHeader("ETag"));
+            long bytesReceived = this.getBytesReceived();
+            long inflated = this.getResponseBytes();
+            GridShibCAClientLogger.debugMessage("Read " + writer.getReceived() +
+                    " trust roots (" + writer.getUnchanged() + " unchanged) in " + inflated +
+                    " bytes" + ((bytesReceived == inflated) ? "" :
+                    " from " + bytesReceived + " compressed bytes (" +
+                    (100 - bytesReceived * 100 / Math.max(1, inflated)) + "% saved)") +
+                    "; " + writer + ", in " + (System.currentTimeMillis() - start) + " ms");
+            if ((writer.getWritten() > 0) &&
+                GridShibCAProperties.getPropertyAsBoolean("IndexTrustRoots"))
+            {
+                this.indexTrustRoots(trustedCAPath, manifest);
+            }
+        } finally
+        {
+            if (!finished)
+            {
+                writer.abort();
+            }
+            try
+            {
+                manifest.store();
+            } catch (IOException e)
+            {
+                // Only costs us fetching everything next time
+                GridShibCAClientLogger.debugMessage("Error writing trust roots manifest: " +
+                        e.getMessage());
             }
         }
-        if (out != null)
+    }
+
+    /**
+     * Create the subject hash links OpenSSL and Globus look up CAs by, as
+     * c_rehash would, hashing on one thread per processor. Failing to is
+     * logged but not fatal, as the files themselves are in place.
+     * @param trustedCAPath Directory of trust roots.
+     * @param manifest Trust roots we have written, which records the
+     * links we create.
+     */
+    private void indexTrustRoots(File trustedCAPath,
+                                 TrustRootsManifest manifest)
+    {
+        long start = System.currentTimeMillis();
+        TrustRootsIndexer indexer =
+            new TrustRootsIndexer(trustedCAPath, manifest, 0);
+        try
+        {
+            indexer.index();
+            GridShibCAClientLogger.debugMessage("Indexed trust roots: " + indexer +
+                    ", in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e)
         {
-            out.close();
+            GridShibCAClientLogger.debugMessage("Error indexing trust roots: " +
+                    e.getMessage());
         }
     }
 
     /**
-     * Send a request to the GridShibCA server for Trust Roots.
+     * Send a request to the GridShibCA server for Trust Roots, listing
+     * those we have so the server need only send what changed, and the
+     * archive formats from the TrustRootsFormats property we'd rather
+     * have them in. Servers that don't know the formats send the text
+     * stream.
+     *
+     * The ETag of the trust roots we last read in full is sent as the
+     * "etag" value, and the server answers "304 Not Modified" with no body
+     * if it still matches. This is a conditional of the TrustRoots command
+     * of our own, not HTTP's: RFC 7232 only allows 304 in answer to a
+     * conditional GET or HEAD, and has a failed If-None-Match on a POST
+     * answered with 412, so the ETag is not sent as If-None-Match.
+     * @param manifest Trust roots we have written.
      * @throws java.io.IOException
      */
-    private void writeRequest()
+    private void writeRequest(TrustRootsManifest manifest)
             throws IOException
     {
-        HashMap values = new HashMap();
+        HashMap<String, String> values = new HashMap<String, String>();
         values.put("command", "TrustRoots");
+        if (manifest.size() > 0)
+        {
+            values.put("digests", manifest.toDigestList());
+        }
+        if (manifest.getETag() != null)
+        {
+            values.put("etag", manifest.getETag());
+        }
+        String formats = GridShibCAProperties.getProperty("TrustRootsFormats");
+        if ((formats != null) && (formats.trim().length() > 0))
+        {
+            values.put("formats", formats.trim());
+        }
         this.post(values);
     }
 
@@ -4,15 +4,17 @@ GridShibCATrustStore.java
 
 This file is part of the GridShib-CA distribution.
 
-Copyright 2006-2009 The Board of Trustees of the University of Illinois.
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
 Please see LICENSE at the root of the distribution.
 */
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
 
 /**
  * Class representing the GridShibCA client's trust store of trusted CA
@@ -22,45 +24,64 @@ public class GridShibCATrustStore {
 
     private Resource resource;
 
+    // Password to read trust store with, or null for none
+    private char[] password = null;
+
     public GridShibCATrustStore(String resourceName) {
         this.resource = new Resource(resourceName);
     }
 
     /**
-     * Return a path to a trust store file. This may be a temporary file.
-     * @return Path of trust store file as string.
+     * @param resourceName Name of trust store resource.
+     * @param password Password the trust store was created with, or null.
+     */
+    public GridShibCATrustStore(String resourceName, char[] password) {
+        this(resourceName);
+        this.password = password;
+    }
+
+    /**
+     * Load the trust store straight from its resource, which is usually
+     * in our jar. A JKS trust store can be read without its password,
+     * but a PKCS12 one may have its certificates encrypted with it.
+     * @return Trust store.
+     * @throws java.io.IOException if the trust store can't be found or read.
+     * @throws java.security.GeneralSecurityException
      */
-    String getPath()
-        throws IOException
+    KeyStore load()
+        throws IOException, GeneralSecurityException
     {
-        URL url = this.resource.getURL();
-        if (url == null)
+        InputStream in = this.resource.asStream();
+        if (in == null)
         {
             throw new IOException("Could not find trust store.");
         }
-        String path = url.toString();
-        // If file is in a jar, we need to write it into a temporary
-        // file, as we need a real file for the trustStore
-        if (path.startsWith("jar:")) {
-            File tempFile = File.createTempFile("GridShibCATrustStore",
-                                                ".trustStore");
-            tempFile.deleteOnExit();    
-            InputStream in = this.resource.asStream();
-            FileOutputStream out = new FileOutputStream(tempFile);
-            byte[] buffer = new byte[1024];	// Arbitrary size
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-            }
+        try {
+            // keytool writes JKS before Java 9 and PKCS12 since; Java
+            // 9 and later read either as the default type.
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(new BufferedInputStream(in), this.password);
+            return keyStore;
+        } finally {
             in.close();
-            out.close();
-            path = tempFile.getAbsolutePath();
-        }
-        // Remove "file:" prefix from path if it exists as the security
-        // runtime can't deal with it.
-        if (path.startsWith("file:")) {
-            path = path.substring(5);
         }
-        return path;
+    }
+
+    /**
+     * Create an SSLContext that trusts only the CAs in the trust store,
+     * leaving the JVM's default context alone.
+     * @return New SSLContext.
+     * @throws java.io.IOException if the trust store can't be found or read.
+     * @throws java.security.GeneralSecurityException
+     */
+    SSLContext createSSLContext()
+        throws IOException, GeneralSecurityException
+    {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(
+            TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(load());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagerFactory.getTrustManagers(), null);
+        return context;
     }
 }
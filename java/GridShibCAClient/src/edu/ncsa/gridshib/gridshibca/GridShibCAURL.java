@@ -9,17 +9,60 @@ Please see LICENSE at the root of the distribution.
 */
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.net.URL;
-import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
  * Base class for URLs representing GridShibCA services.
+ *
+ * All requests in a run share one keep-alive connection per server: the
+ * JDK keeps a connection open for reuse once its response has been read
+ * and closed (rather than disconnected), provided the next request uses
+ * the same SSLSocketFactory. closeConnection() does the former and
+ * openConnection() the latter, so e.g. TrustRoots reuses the connection,
+ * and TLS session, that IssueCert just used.
+ *
+ * Should a new connection be needed (the server closed the old one, or a
+ * later request in a long-running process) the shared factory's session
+ * cache lets it resume the earlier TLS session with an abbreviated
+ * handshake. Sessions only live as long as the JVM: JSSE has no way to
+ * save or restore them, so each launch starts with one full handshake.
+ *
+ * Requests can also be made asynchronously with submit(), which runs
+ * them on a small pool of daemon threads and returns a Future, so that
+ * independent requests (e.g. TrustRoots and IssueCert) overlap with each
+ * other and with key generation instead of following one another.
+ *
+ * Every request is bounded by connect and read timeouts and by a deadline
+ * for the whole run, after which requests in progress are disconnected
+ * and new ones fail. cancelAll() abandons all requests, e.g. on exit.
  */
 public class GridShibCAURL
 {
@@ -30,9 +73,85 @@ public class GridShibCAURL
     // Connection to target
     protected HttpURLConnection conn;
 
-    // SSLSocketFactory to use for HTTPS connections
+    // Response from target, once opened by getResponseStream()
+    private InputStream response = null;
+
+    // True once the response status has been read, after which the
+    // connection's streams can be read without it connecting again
+    private boolean responseReceived = false;
+
+    // Count response bytes as received and, if the response was
+    // compressed, after inflating
+    private CountingInputStream receivedCounter = null;
+    private CountingInputStream responseCounter = null;
+
+    // Timing of the request in progress
+    private RequestTiming timing = null;
+
+    // Timings of all requests made, for timingSummary()
+    private static final List<RequestTiming> timings =
+        Collections.synchronizedList(new ArrayList<RequestTiming>());
+
+    // SSLSocketFactory trusting only our bundled CAs, from an SSLContext
+    // of our own that caches TLS sessions for later connections
     private static SSLSocketFactory mySSLSocketFactory = null;
 
+    // TCP and TLS settings for our connections, from init()
+    private static SocketTuning socketTuning = null;
+
+    // Factory actually used for HTTPS connections; wraps mySSLSocketFactory
+    // or the default. Must be the same instance for every request for
+    // connections to be reused.
+    private static CountingSSLSocketFactory connectionFactory = null;
+
+    // Requests made
+    private static AtomicInteger requests = new AtomicInteger();
+
+    // Response body bytes received, and their size after inflating
+    private static AtomicLong bytesReceived = new AtomicLong();
+    private static AtomicLong responseBytes = new AtomicLong();
+
+    // Most unread response bytes we'll skip to keep a connection open
+    private static final int maxDrainBytes = 64 * 1024;
+
+    // Most requests in progress at once, which is also the most
+    // connections we'll have open to a server
+    private static final int maxConcurrentRequests = 2;
+
+    // Runs asynchronous requests; created on first use
+    private static ExecutorService executor = null;
+
+    // Connection pre-warm started by prewarm() and not yet waited for,
+    // returning the milliseconds it took
+    private static Future<Long> prewarmRequest = null;
+
+    // Connect and read timeouts in milliseconds, 0 for none
+    private static int connectTimeout = 30 * 1000;
+    private static int readTimeout = 60 * 1000;
+
+    // Time (as from System.currentTimeMillis()) by which all requests must
+    // be done, or 0 for none
+    private static long deadline = 0;
+
+    // Retry backoff: first delay is up to backoffBase ms, doubling each
+    // retry up to backoffCap ms
+    private static final long backoffBase = 500;
+    private static final long backoffCap = 8 * 1000;
+
+    // Source of backoff jitter
+    private static final Random jitter = new Random();
+
+    // Set once cancelAll() has been called
+    private static volatile boolean cancelled = false;
+
+    // Connections in progress, with the task that enforces the deadline on
+    // each (or null)
+    private static final Map<HttpURLConnection, TimerTask> activeConnections =
+        new HashMap<HttpURLConnection, TimerTask>();
+
+    // Runs deadline tasks; created on first use
+    private static Timer deadlineTimer = null;
+
     /**
      * Create new URL object presenting server at given url.
      * @param url URL to service.
@@ -49,30 +168,47 @@ public class GridShibCAURL
      */
     public static void init()
     {
+        setTimeouts(GridShibCAProperties.getPropertyAsInt("ConnectTimeout") * 1000,
+                GridShibCAProperties.getPropertyAsInt("ReadTimeout") * 1000);
+        int deadlineSeconds = GridShibCAProperties.getPropertyAsInt("Deadline");
+        setDeadline((deadlineSeconds > 0) ?
+                System.currentTimeMillis() + deadlineSeconds * 1000L : 0);
+        GridShibCAClientLogger.debugMessage("Timeouts: connect " +
+                connectTimeout + " ms, read " + readTimeout + " ms, deadline " +
+                ((deadlineSeconds > 0) ? deadlineSeconds + " s" : "none"));
+        socketTuning = SocketTuning.fromProperties();
+        GridShibCAClientLogger.debugMessage("Socket settings: " + socketTuning);
+
         if (GridShibCAProperties.getPropertyAsBoolean("UseBundledCAs"))
         {
-            try
+            /*
+             * Get a socket factory for our use that trusts all the CAs in
+             * the given trustStore, read straight from our jar. It has its
+             * own SSLContext, so the JVM's default trust settings, and
+             * anyone else using them, are unaffected.
+             */
+            if (mySSLSocketFactory == null)
             {
-                /*
-                 * Get a socket factory for our use that trusts all the CAs in
-                 * the given trustStore. This has to be done before Java has a
-                 * chance to initialize its own SSLSocketFactory.
-                 */
                 String trustStoreResourceName = GridShibCAProperties.getProperty("TrustStore");
-                String trustStorePath = new GridShibCATrustStore(trustStoreResourceName).getPath();
-                GridShibCAClientLogger.debugMessage("Setting SSL trust store to " + trustStorePath);
-                System.setProperty("javax.net.ssl.trustStore", trustStorePath);
-
-                // Now we get the current default SSLSocketFactory. Doing
-                // this will initialize the factory, causing the trusted
-                // CAs created above to be read.
-                mySSLSocketFactory =
-                        (SSLSocketFactory) SSLSocketFactory.getDefault();
-
-            } catch (IOException e)
-            {
-                // Could not find trust store
-                throw new RuntimeException(e);
+                String password = GridShibCAProperties.getProperty("TrustStorePassword");
+                long start = System.currentTimeMillis();
+                try
+                {
+                    mySSLSocketFactory = new GridShibCATrustStore(
+                            trustStoreResourceName,
+                            (password.length() > 0) ? password.toCharArray() : null)
+                            .createSSLContext().getSocketFactory();
+                } catch (IOException e)
+                {
+                    // Could not find trust store
+                    throw new RuntimeException(e);
+                } catch (GeneralSecurityException e)
+                {
+                    throw new RuntimeException(e);
+                }
+                GridShibCAClientLogger.debugMessage("Loaded trust store " +
+                        trustStoreResourceName + " in " +
+                        (System.currentTimeMillis() - start) + " ms");
             }
         } else
         {
@@ -87,66 +223,753 @@ public class GridShibCAURL
     protected void openConnection()
             throws IOException
     {
+        if (cancelled)
+        {
+            throw new IOException("Cancelled");
+        }
+        long remaining = remainingMillis();
+        if (remaining <= 0)
+        {
+            throw new SocketTimeoutException("Deadline passed before connecting to " + this.url);
+        }
         GridShibCAClientLogger.debugMessage("Establishing connection to " + this.url);
+        this.timing = RequestTiming.begin(this.url.toString());
+        timings.add(this.timing);
+        // Look the host up ourselves to time it; HttpURLConnection's own
+        // lookup is then answered from the JVM's cache.
+        long dnsStart = System.nanoTime();
+        try
+        {
+            InetAddress.getByName(this.url.getHost());
+        } catch (UnknownHostException e)
+        {
+            this.timing.failed(e.toString());
+            this.timing.end(0, 0);
+            this.timing = null;
+            throw e;
+        }
+        this.timing.dnsDone(System.nanoTime() - dnsStart);
         this.conn = (HttpURLConnection) this.url.openConnection();
+        this.response = null;
+        this.responseReceived = false;
+
+        this.conn.setConnectTimeout(boundedTimeout(connectTimeout, remaining));
+        this.conn.setReadTimeout(boundedTimeout(readTimeout, remaining));
+        track(this.conn);
+
+        requests.incrementAndGet();
 
         this.conn.setRequestProperty("accept", "text/plain");
         this.conn.setRequestProperty("User-Agent",
                 "GridShibCA-JWS/" + GridShibCAProperties.getProperty("Version"));
 
-        // If this is a https connection and we have SSLSocketFactory
-        // to use (i.e. we have a trustStore besides the default) now
-        // is the time to take care of that.
-        if (this.url.getProtocol().equals("https") &&
-                (this.mySSLSocketFactory != null))
+        // If this is a https connection use our shared SSLSocketFactory,
+        // which uses our own trustStore if we have one.
+        if (this.url.getProtocol().equals("https"))
         {
             HttpsURLConnection sconn = (HttpsURLConnection) this.conn;
-            GridShibCAClientLogger.debugMessage("Using my trustStore with my CAs");
-            sconn.setSSLSocketFactory(this.mySSLSocketFactory);
+            if (mySSLSocketFactory != null)
+            {
+                GridShibCAClientLogger.debugMessage("Using my trustStore with my CAs");
+            }
+            sconn.setSSLSocketFactory(getConnectionFactory());
         }
 
         this.conn.setDoOutput(true);
     }
 
     /**
-     * Post a request to the connection
-     * @param values Paramets to post.
+     * Post a request to the connection. The body is encoded straight onto
+     * the connection with its length declared up front, which also stops
+     * HttpURLConnection silently re-sending the request after a read
+     * timeout. The start of the body is logged if the LogPostBody property
+     * is set, as it contains the authentication token.
+     * @param values Parameters to post.
      * @throws IOException
      */
-    protected void post(HashMap values)
+    protected void post(Map<String, String> values)
             throws IOException
     {
-        GridShibCAClientLogger.debugMessage("POSTing...");
-        OutputStreamWriter postWriter =
-                new OutputStreamWriter(this.conn.getOutputStream());
-        String postData = "";
-        Iterator keysIterator = values.keySet().iterator();
-        while (keysIterator.hasNext())
+        this.timing.setName(values.get("command"));
+        FormEncoder body = new FormEncoder(values);
+        long length = body.getLength();
+        GridShibCAClientLogger.debugMessage("POSTing " + values.keySet() +
+                " (" + length + " bytes)");
+        int logLength = GridShibCAProperties.getPropertyAsInt("LogPostBody");
+        if (logLength > 0)
+        {
+            GridShibCAClientLogger.debugMessage("POST: " +
+                    body.toString(logLength));
+        }
+        this.conn.setFixedLengthStreamingMode(length);
+        this.connect();
+        try
+        {
+            OutputStream out = this.conn.getOutputStream();
+            body.writeTo(out);
+            out.flush();
+        } catch (IOException e)
         {
-            String key = (String) keysIterator.next();
-            String value = URLEncoder.encode((String) values.get(key), "UTF-8");
-            postData += key + "=" + value;
-            GridShibCAClientLogger.debugMessage("\t" + key + "=" + value);
-            if (keysIterator.hasNext())
+            this.timing.failed(e.toString());
+            throw e;
+        }
+        this.timing.sent();
+    }
+
+    /**
+     * Connect, if not already connected, and if that made a new TLS
+     * connection record its handshake in our timing.
+     * @throws java.io.IOException
+     */
+    private void connect()
+            throws IOException
+    {
+        try
+        {
+            this.conn.connect();
+        } catch (IOException e)
+        {
+            this.timing.failed(e.toString());
+            throw e;
+        }
+        if (this.conn instanceof HttpsURLConnection)
+        {
+            getConnectionFactory().connected(this.timing);
+        }
+    }
+
+    /**
+     * Ask for the response to the next request to be gzip compressed if
+     * the server can. getResponseStream() inflates it transparently. Call
+     * after openConnection().
+     */
+    protected void acceptCompressed()
+    {
+        this.conn.setRequestProperty("Accept-Encoding", "gzip");
+    }
+
+    /**
+     * Set a header on the next request. Call after openConnection().
+     * @param name Header name.
+     * @param value Header value.
+     */
+    protected void setRequestHeader(String name, String value)
+    {
+        this.conn.setRequestProperty(name, value);
+    }
+
+    /**
+     * @param name Header name.
+     * @return Value of header in the response, or null if not present.
+     */
+    protected String getResponseHeader(String name)
+    {
+        return this.conn.getHeaderField(name);
+    }
+
+    /**
+     * Return the response to our request, inflated if it was compressed.
+     * The stream is closed by closeConnection(), so callers should not
+     * close it themselves.
+     * @return Response body.
+     * @throws java.io.IOException including on an HTTP error status.
+     */
+    protected InputStream getResponseStream()
+            throws IOException
+    {
+        if (this.response == null)
+        {
+            int status = this.getResponseCode();
+            if (status >= HttpURLConnection.HTTP_BAD_REQUEST)
             {
-                postData += "&";
+                throw new HTTPStatusException(status,
+                        this.conn.getResponseMessage());
             }
+            this.receivedCounter =
+                    new CountingInputStream(this.conn.getInputStream());
+            InputStream in = this.receivedCounter;
+            String encoding = this.conn.getContentEncoding();
+            if ("gzip".equalsIgnoreCase(encoding) ||
+                "x-gzip".equalsIgnoreCase(encoding))
+            {
+                in = new GZIPInputStream(in, 8192);
+            }
+            this.responseCounter = new CountingInputStream(in);
+            this.response = this.responseCounter;
         }
-        GridShibCAClientLogger.debugMessage("POST: " + postData);
-        postWriter.write(postData);
-        postWriter.flush();
+        return this.response;
     }
 
     /**
-     * Close the connection to the GridShibCA server in this.conn.
+     * Wait for the response to our request.
+     * @return HTTP status of the response.
+     * @throws java.io.IOException
+     */
+    protected int getResponseCode()
+            throws IOException
+    {
+        try
+        {
+            int status = this.conn.getResponseCode();
+            this.responseReceived = true;
+            this.timing.headersReceived(status);
+            return status;
+        } catch (IOException e)
+        {
+            this.timing.failed(e.toString());
+            throw e;
+        }
+    }
+
+    /**
+     * Finish with the connection to the GridShibCA server in this.conn.
+     * Any unread response is read and discarded so the underlying
+     * connection can be kept alive for our next request. If no response
+     * was received (e.g. connecting or posting failed, or we were
+     * cancelled or hit the deadline) the connection is just dropped;
+     * asking it for a response would connect and send the request again.
      */
     protected void closeConnection()
     {
-        GridShibCAClientLogger.debugMessage("Disconnecting from " + this.url);
-        if (this.conn != null)
+        if (this.conn == null)
+        {
+            return;
+        }
+        untrack(this.conn);
+        GridShibCAClientLogger.debugMessage("Releasing connection to " + this.url);
+        InputStream in = this.response;
+        if ((in == null) && this.responseReceived)
         {
+            try
+            {
+                in = this.conn.getInputStream();
+            } catch (IOException e)
+            {
+                // Error response; its body is in the error stream
+                in = this.conn.getErrorStream();
+            }
+        }
+        if ((in == null) || !drain(in))
+        {
+            GridShibCAClientLogger.debugMessage("Disconnecting from " + this.url);
             this.conn.disconnect();
         }
+        if (this.receivedCounter != null)
+        {
+            bytesReceived.addAndGet(this.receivedCounter.getCount());
+            responseBytes.addAndGet(this.responseCounter.getCount());
+        }
+        this.timing.end(getBytesReceived(), getResponseBytes());
+        GridShibCAClientLogger.debugMessage("Timing: " + this.timing);
+        this.timing = null;
         this.conn = null;
+        this.response = null;
+        this.responseReceived = false;
+        this.receivedCounter = null;
+        this.responseCounter = null;
+    }
+
+    /**
+     * Read and close what remains of a response.
+     * @param in Response stream.
+     * @return true if the stream was fully read, false if it was too long
+     * or reading it failed.
+     */
+    private static boolean drain(InputStream in)
+    {
+        byte[] buffer = new byte[4096];
+        int total = 0;
+        try
+        {
+            int count;
+            while ((count = in.read(buffer)) != -1)
+            {
+                total += count;
+                if (total > maxDrainBytes)
+                {
+                    return false;
+                }
+            }
+            in.close();
+            return true;
+        } catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Set connect and read timeouts for future requests.
+     * @param connectMillis Connect timeout in milliseconds, 0 for none.
+     * @param readMillis Read timeout in milliseconds, 0 for none.
+     */
+    public static void setTimeouts(int connectMillis, int readMillis)
+    {
+        connectTimeout = Math.max(0, connectMillis);
+        readTimeout = Math.max(0, readMillis);
+    }
+
+    /**
+     * Set a time by which all requests must be done.
+     * @param time Deadline as from System.currentTimeMillis(), 0 for none.
+     */
+    public static void setDeadline(long time)
+    {
+        deadline = time;
+    }
+
+    /**
+     * @return Milliseconds until the deadline, Long.MAX_VALUE if there is
+     * none.
+     */
+    protected static long remainingMillis()
+    {
+        return (deadline == 0) ? Long.MAX_VALUE :
+            deadline - System.currentTimeMillis();
+    }
+
+    /**
+     * Abandon all requests: those in progress are disconnected and new
+     * ones fail. For use on exit.
+     */
+    public static void cancelAll()
+    {
+        cancelled = true;
+        HttpURLConnection[] connections;
+        synchronized (activeConnections)
+        {
+            connections = activeConnections.keySet().toArray(
+                new HttpURLConnection[activeConnections.size()]);
+        }
+        for (int i = 0; i < connections.length; i++)
+        {
+            connections[i].disconnect();
+        }
+        synchronized (GridShibCAURL.class)
+        {
+            if (executor != null)
+            {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Wait before retrying a failed request, with jittered exponential
+     * backoff.
+     * @param retry Number of this retry, starting at 1.
+     * @return Milliseconds to wait, or -1 if the wait would pass the
+     * deadline or we have been cancelled.
+     */
+    protected static long backoff(int retry)
+    {
+        long ceiling = Math.min(backoffCap,
+                backoffBase << Math.min(retry - 1, 16));
+        long delay = (long) (jitter.nextDouble() * ceiling);
+        if (cancelled || (delay >= remainingMillis()))
+        {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * @return A timeout of at most timeout that ends by the deadline.
+     */
+    private static int boundedTimeout(int timeout, long remaining)
+    {
+        if (remaining >= Integer.MAX_VALUE)
+        {
+            return timeout;
+        }
+        return (timeout == 0) ? (int) remaining :
+            (int) Math.min(timeout, remaining);
+    }
+
+    /**
+     * Note a connection is in progress, disconnecting it at the deadline
+     * if it is still in progress then.
+     */
+    private static void track(final HttpURLConnection connection)
+    {
+        TimerTask task = null;
+        if (deadline != 0)
+        {
+            task = new TimerTask()
+            {
+                public void run()
+                {
+                    connection.disconnect();
+                }
+            };
+        }
+        synchronized (activeConnections)
+        {
+            activeConnections.put(connection, task);
+            if (task != null)
+            {
+                if (deadlineTimer == null)
+                {
+                    deadlineTimer = new Timer("GridShibCA-deadline", true);
+                }
+                deadlineTimer.schedule(task, new Date(deadline));
+            }
+        }
+    }
+
+    /**
+     * Note a connection is no longer in progress.
+     */
+    private static void untrack(HttpURLConnection connection)
+    {
+        synchronized (activeConnections)
+        {
+            TimerTask task = activeConnections.remove(connection);
+            if (task != null)
+            {
+                task.cancel();
+            }
+        }
+    }
+
+    /**
+     * Start opening a connection to the server in the background, so DNS
+     * lookup, TCP connect and TLS handshake overlap with whatever we do
+     * next (e.g. key generation). The connection is made with a HEAD
+     * request for the server's root, which leaves it kept alive for the
+     * next request to the same host; whatever the status, redirects
+     * included, it is not followed. Does nothing if a pre-warm is already
+     * under way.
+     * @param url URL of a service on the server.
+     * @throws java.net.MalformedURLException
+     */
+    public static synchronized void prewarm(URL url)
+            throws MalformedURLException
+    {
+        if (prewarmRequest != null)
+        {
+            return;
+        }
+        final URL root = new URL(url.getProtocol(), url.getHost(),
+                url.getPort(), "/");
+        prewarmRequest = submit(new Callable<Long>()
+        {
+            public Long call()
+                    throws IOException
+            {
+                long start = System.currentTimeMillis();
+                InetAddress.getByName(root.getHost());
+                long dns = System.currentTimeMillis() - start;
+                GridShibCAURL warm = new GridShibCAURL(root);
+                warm.openConnection();
+                try
+                {
+                    warm.timing.setName("Prewarm");
+                    warm.conn.setDoOutput(false);
+                    warm.conn.setRequestMethod("HEAD");
+                    // Any response will do; following a redirect could
+                    // connect to some other host
+                    warm.conn.setInstanceFollowRedirects(false);
+                    warm.connect();
+                    warm.getResponseCode();
+                } finally
+                {
+                    warm.closeConnection();
+                }
+                long elapsed = System.currentTimeMillis() - start;
+                GridShibCAClientLogger.debugMessage("Pre-warmed connection to " +
+                        root.getHost() + " in " + elapsed + " ms (DNS " +
+                        dns + " ms)");
+                return Long.valueOf(elapsed);
+            }
+        });
+    }
+
+    /**
+     * Wait for any pre-warm started by prewarm() to finish, so the caller's
+     * request can use its connection rather than making another, and log
+     * how much connection latency it hid. Every request made while it is
+     * under way waits, so none makes a connection with a full TLS
+     * handshake of its own: the first reuses the pre-warmed connection
+     * and others resume its TLS session. A failed pre-warm is only
+     * logged; the caller's own request will report any real problem.
+     */
+    protected static void awaitPrewarm()
+    {
+        Future<Long> request;
+        synchronized (GridShibCAURL.class)
+        {
+            request = prewarmRequest;
+        }
+        if (request == null)
+        {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try
+        {
+            long setup = request.get().longValue();
+            long waited = System.currentTimeMillis() - start;
+            if (prewarmDone(request))
+            {
+                GridShibCAClientLogger.debugMessage("Connection pre-warm hid " +
+                        Math.max(0, setup - waited) + " ms of " + setup +
+                        " ms connection setup (waited " + waited + " ms)");
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e)
+        {
+            if (prewarmDone(request))
+            {
+                GridShibCAClientLogger.debugMessage("Connection pre-warm failed: " +
+                        e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Note a pre-warm is done with.
+     * @return True for the first request to note it, which reports it.
+     */
+    private static synchronized boolean prewarmDone(Future<Long> request)
+    {
+        if (prewarmRequest != request)
+        {
+            return false;
+        }
+        prewarmRequest = null;
+        return true;
+    }
+
+    /**
+     * Run a request in the background.
+     * @param request Request to run; it should use its own GridShibCAURL.
+     * @return Future for the request's result; see await().
+     */
+    protected static <T> Future<T> submit(Callable<T> request)
+    {
+        return getExecutor().submit(request);
+    }
+
+    /**
+     * Wait for a request started with submit().
+     * @param request Future returned by submit().
+     * @return Result of request.
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    public static <T> T await(Future<T> request)
+            throws IOException, GeneralSecurityException
+    {
+        try
+        {
+            return request.get();
+        } catch (InterruptedException e)
+        {
+            throw new IOException("Interrupted waiting for server");
+        } catch (ExecutionException e)
+        {
+            // Unwrap so callers see the original network/crypto error
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GeneralSecurityException)
+            {
+                throw (GeneralSecurityException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Request failed", cause);
+        }
+    }
+
+    /**
+     * @return Executor for asynchronous requests, created on first use.
+     */
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newFixedThreadPool(maxConcurrentRequests,
+                    new ThreadFactory()
+            {
+                private AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r,
+                        "GridShibCA-request-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * @return Factory to use for all HTTPS connections, created on first
+     * use.
+     */
+    private static synchronized CountingSSLSocketFactory getConnectionFactory()
+    {
+        if (connectionFactory == null)
+        {
+            connectionFactory = new CountingSSLSocketFactory(
+                    (mySSLSocketFactory != null) ? mySSLSocketFactory :
+                    HttpsURLConnection.getDefaultSSLSocketFactory(),
+                    socketTuning);
+        }
+        return connectionFactory;
+    }
+
+    /**
+     * @return Number of requests made to GridShibCA servers.
+     */
+    public static int getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * @return Number of TLS connections, and hence handshakes, made.
+     */
+    public static int getConnectionCount()
+    {
+        return (connectionFactory == null) ? 0 :
+            connectionFactory.getSocketCount();
+    }
+
+    /**
+     * @return Number of HTTPS requests that reused a kept-alive connection
+     * rather than making a new one.
+     */
+    public static int getHandshakesAvoided()
+    {
+        return Math.max(0, getRequestCount() - getConnectionCount());
+    }
+
+    /**
+     * @return Number of TLS handshakes that established a new session.
+     */
+    public static int getFullHandshakeCount()
+    {
+        return (connectionFactory == null) ? 0 :
+            connectionFactory.getFullHandshakeCount();
+    }
+
+    /**
+     * @return Number of TLS handshakes that resumed a session from an
+     * earlier connection in this run, skipping key exchange and
+     * certificate verification.
+     */
+    public static int getResumedHandshakeCount()
+    {
+        return (connectionFactory == null) ? 0 :
+            connectionFactory.getResumedHandshakeCount();
+    }
+
+    /**
+     * @return Bytes of the current response received so far, before
+     * inflating.
+     */
+    protected long getBytesReceived()
+    {
+        return (this.receivedCounter == null) ? 0 :
+            this.receivedCounter.getCount();
+    }
+
+    /**
+     * @return Bytes of the current response read so far, after inflating.
+     */
+    protected long getResponseBytes()
+    {
+        return (this.responseCounter == null) ? 0 :
+            this.responseCounter.getCount();
+    }
+
+    /**
+     * @return Response body bytes received from GridShibCA servers for
+     * finished requests.
+     */
+    public static long getTotalBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return Size of those responses after inflating any that were
+     * compressed.
+     */
+    public static long getTotalResponseBytes()
+    {
+        return responseBytes.get();
+    }
+
+    /**
+     * @return Summary of connection reuse and bytes received, for the
+     * debug log.
+     */
+    public static String connectionSummary()
+    {
+        return getRequestCount() + " requests over " + getConnectionCount() +
+            " TLS connections (" + getHandshakesAvoided() +
+            " handshakes avoided; " + getFullHandshakeCount() + " full, " +
+            getResumedHandshakeCount() + " resumed), " +
+            getTotalBytesReceived() + " bytes received for " +
+            getTotalResponseBytes() + " bytes of responses";
+    }
+
+    /**
+     * @return Machine-readable summary of every request made and of
+     * connection use, as a JSON object.
+     */
+    public static String timingSummary()
+    {
+        StringBuilder s = new StringBuilder("{\"requests\": [");
+        synchronized (timings)
+        {
+            for (int i = 0; i < timings.size(); i++)
+            {
+                s.append((i == 0) ? "" : ", ").append(timings.get(i).toJSON());
+            }
+        }
+        s.append("], \"connections\": ").append(getConnectionCount());
+        s.append(", \"fullHandshakes\": ").append(getFullHandshakeCount());
+        s.append(", \"resumedHandshakes\": ").append(getResumedHandshakeCount());
+        s.append(", \"bytesReceived\": ").append(getTotalBytesReceived());
+        s.append(", \"responseBytes\": ").append(getTotalResponseBytes());
+        return s.append('}').toString();
+    }
+
+    /**
+     * Thrown when the server answers a request with an HTTP error status.
+     */
+    public static class HTTPStatusException
+            extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private int status;
+
+        public HTTPStatusException(int status, String message)
+        {
+            super("Server returned error status " + status + ": " + message);
+            this.status = status;
+        }
+
+        /**
+         * @return HTTP status code.
+         */
+        public int getStatus()
+        {
+            return this.status;
+        }
     }
 }
@@ -0,0 +1,30 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+KeyPairEngine.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Strategy used by Credential to generate key pairs.
+ */
+public interface KeyPairEngine
+{
+    /**
+     * Generate a new key pair.
+     * @param keySize The key size for the generated keys.
+     * @param keyAlg The key algorithm to use.
+     * @return The new key pair.
+     * @throws java.security.NoSuchAlgorithmException
+     * @throws java.io.IOException if generation is interrupted.
+     */
+    KeyPair genKeyPair(int keySize, String keyAlg)
+            throws NoSuchAlgorithmException, IOException;
+}
@@ -12,17 +12,42 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.EncryptedPrivateKeyInfo;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.DERInputStream;
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.DERNull;
 import org.bouncycastle.asn1.DERObject;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DEROutputStream;
+import org.bouncycastle.asn1.DERSequence;
 import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.pkcs.RSAPrivateKeyStructure;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.jce.PKCS10CertificationRequest;
 // XXX Use COG Base64 class here to save including another class?
 import org.bouncycastle.util.encoders.Base64;
@@ -35,6 +60,12 @@ public class PEMEncoder {
     // Number of characters on a line
     static int defaultPEMMaxLineLength = 64;
 
+    // OIDs for PKCS5 v2 encryption (RFC 8018) of private keys
+    private static final String pbes2OID = "1.2.840.113549.1.5.13";
+    private static final String pbkdf2OID = "1.2.840.113549.1.5.12";
+    private static final String hmacWithSHA256OID = "1.2.840.113549.2.9";
+    private static final String aes256CBCOID = "2.16.840.1.101.3.4.1.42";
+
     /**
      * Given a RSAPrivateKey, return a PEM-encoded representation.
      * @param key The RSAPrivateKey object
@@ -56,6 +87,102 @@ public class PEMEncoder {
         return toPEM(bout.toByteArray(), "RSA PRIVATE KEY");
     }
 
+    /**
+     * Given a private key, return a PEM-encoded unencrypted PKCS8
+     * representation.
+     * @param key The private key.
+     * @return PEM-encoded key.
+     * @throws java.io.IOException
+     */
+    static String encodePKCS8PrivateKey(PrivateKey key)
+        throws java.io.IOException
+    {
+        return toPEM(key.getEncoded(), "PRIVATE KEY");
+    }
+
+    /**
+     * Given a private key, return a PEM-encoded PKCS8 representation
+     * encrypted with a key derived from the given passphrase using a
+     * PKCS12/PKCS5 v1 password-based encryption algorithm.
+     * @param key The private key.
+     * @param passphrase Passphrase to derive the encryption key from.
+     * @param pbeAlg Password-based encryption algorithm to use.
+     * @param iterations Key derivation iteration count.
+     * @param random Source of salt.
+     * @return PEM-encoded encrypted key.
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    static String encodeEncryptedPKCS8PrivateKey(PrivateKey key,
+        char[] passphrase, String pbeAlg, int iterations, SecureRandom random)
+        throws java.io.IOException, GeneralSecurityException
+    {
+        byte[] salt = new byte[8];
+        random.nextBytes(salt);
+        PBEParameterSpec pbeSpec = new PBEParameterSpec(salt, iterations);
+        SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(pbeAlg);
+        SecretKey pbeKey = keyFactory.generateSecret(new PBEKeySpec(passphrase));
+        Cipher cipher = Cipher.getInstance(pbeAlg);
+        cipher.init(Cipher.ENCRYPT_MODE, pbeKey, pbeSpec, random);
+        byte[] encrypted = cipher.doFinal(key.getEncoded());
+        EncryptedPrivateKeyInfo info =
+            new EncryptedPrivateKeyInfo(cipher.getParameters(), encrypted);
+        return toPEM(info.getEncoded(), "ENCRYPTED PRIVATE KEY");
+    }
+
+    /**
+     * Given a private key, return a PEM-encoded PKCS8 representation
+     * encrypted with PKCS5 v2 (PBES2): AES-256-CBC with a key derived by
+     * PBKDF2 with HMAC-SHA256.
+     * @param key The private key.
+     * @param passphrase Passphrase to derive the encryption key from.
+     * @param iterations PBKDF2 iteration count.
+     * @param random Source of salt and IV.
+     * @return PEM-encoded encrypted key.
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    static String encodePBES2PrivateKey(PrivateKey key, char[] passphrase,
+        int iterations, SecureRandom random)
+        throws java.io.IOException, GeneralSecurityException
+    {
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+
+        SecretKeyFactory keyFactory =
+            SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        PBEKeySpec keySpec = new PBEKeySpec(passphrase, salt, iterations, 256);
+        SecretKey aesKey = new SecretKeySpec(
+            keyFactory.generateSecret(keySpec).getEncoded(), "AES");
+        keySpec.clearPassword();
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, aesKey, new IvParameterSpec(iv));
+        byte[] encrypted = cipher.doFinal(key.getEncoded());
+
+        // PBKDF2-params: salt, iterationCount, keyLength, prf
+        ASN1EncodableVector kdfParams = new ASN1EncodableVector();
+        kdfParams.add(new DEROctetString(salt));
+        kdfParams.add(new DERInteger(iterations));
+        kdfParams.add(new DERInteger(32));
+        kdfParams.add(new AlgorithmIdentifier(
+            new DERObjectIdentifier(hmacWithSHA256OID), new DERNull()));
+        // PBES2-params: keyDerivationFunc, encryptionScheme
+        ASN1EncodableVector pbes2Params = new ASN1EncodableVector();
+        pbes2Params.add(new AlgorithmIdentifier(
+            new DERObjectIdentifier(pbkdf2OID), new DERSequence(kdfParams)));
+        pbes2Params.add(new AlgorithmIdentifier(
+            new DERObjectIdentifier(aes256CBCOID), new DEROctetString(iv)));
+        // EncryptedPrivateKeyInfo
+        ASN1EncodableVector info = new ASN1EncodableVector();
+        info.add(new AlgorithmIdentifier(
+            new DERObjectIdentifier(pbes2OID), new DERSequence(pbes2Params)));
+        info.add(new DEROctetString(encrypted));
+        return toPEM(new DERSequence(info).getDEREncoded(),
+            "ENCRYPTED PRIVATE KEY");
+    }
+
     /**
      * Given a PKCS10CertificationReques, return a PEM-encoded representation.
      * @param request The PKCS10Certification request.
@@ -84,6 +211,104 @@ public class PEMEncoder {
         return (X509Certificate) certFactory.generateCertificate(inStream);
     }
 
+    /**
+     * Given PEM-encoded text containing an unencrypted private key (either
+     * a PKCS1 "RSA PRIVATE KEY" or a PKCS8 "PRIVATE KEY"), return the key.
+     * @param pem Text to search for the key. Other PEM objects (e.g.
+     * certificates) are ignored.
+     * @param keyAlg Algorithm of the key (needed for PKCS8 keys).
+     * @return Private key.
+     * @throws java.io.IOException if no unencrypted key is found.
+     * @throws java.security.GeneralSecurityException
+     */
+    static PrivateKey privateKeyFromPEM(String pem, String keyAlg)
+        throws IOException, GeneralSecurityException
+    {
+        if ((pem.indexOf(beginString("ENCRYPTED PRIVATE KEY")) != -1) ||
+            (pem.indexOf("Proc-Type: 4,ENCRYPTED") != -1))
+        {
+            throw new IOException("Private key is encrypted");
+        }
+        byte[] der = fromPEM(pem, "RSA PRIVATE KEY");
+        if (der != null)
+        {
+            RSAPrivateKeyStructure rsaKey = new RSAPrivateKeyStructure(
+                (ASN1Sequence) new ASN1InputStream(der).readObject());
+            RSAPrivateCrtKeySpec spec = new RSAPrivateCrtKeySpec(
+                rsaKey.getModulus(),
+                rsaKey.getPublicExponent(),
+                rsaKey.getPrivateExponent(),
+                rsaKey.getPrime1(),
+                rsaKey.getPrime2(),
+                rsaKey.getExponent1(),
+                rsaKey.getExponent2(),
+                rsaKey.getCoefficient());
+            return KeyFactory.getInstance("RSA").generatePrivate(spec);
+        }
+        der = fromPEM(pem, "PRIVATE KEY");
+        if (der != null)
+        {
+            return KeyFactory.getInstance(keyAlg).generatePrivate(
+                new PKCS8EncodedKeySpec(der));
+        }
+        throw new IOException("No private key found");
+    }
+
+    /**
+     * Given PEM-encoded text, return the decoded contents of the first
+     * object with the given title.
+     * @param pem Text to search.
+     * @param title Title of the PEM object (e.g. "CERTIFICATE").
+     * @return Decoded bytes, or null if no such object is present.
+     * @throws java.io.IOException if the object is not terminated.
+     */
+    static byte[] fromPEM(String pem, String title)
+        throws IOException
+    {
+        String begin = beginString(title);
+        int start = pem.indexOf(begin);
+        if (start == -1)
+        {
+            return null;
+        }
+        start += begin.length();
+        int end = pem.indexOf(endString(title), start);
+        if (end == -1)
+        {
+            throw new IOException("Unterminated PEM object: " + title);
+        }
+        return Base64.decode(pem.substring(start, end));
+    }
+
+    /**
+     * Given PEM-encoded text, return the decoded contents of every object
+     * with the given title, in order.
+     * @param pem Text to search.
+     * @param title Title of the PEM objects (e.g. "CERTIFICATE").
+     * @return Decoded objects, empty if none are present.
+     * @throws java.io.IOException if an object is not terminated.
+     */
+    static List<byte[]> allFromPEM(String pem, String title)
+        throws IOException
+    {
+        List<byte[]> objects = new ArrayList<byte[]>();
+        String begin = beginString(title);
+        String end = endString(title);
+        int start = pem.indexOf(begin);
+        while (start != -1)
+        {
+            start += begin.length();
+            int stop = pem.indexOf(end, start);
+            if (stop == -1)
+            {
+                throw new IOException("Unterminated PEM object: " + title);
+            }
+            objects.add(Base64.decode(pem.substring(start, stop)));
+            start = pem.indexOf(begin, stop + end.length());
+        }
+        return objects;
+    }
+
     /**
      * Given a X509Certificate, return a PEM-encoded version.
      * @param cert Certificate to encode.
@@ -107,9 +332,11 @@ public class PEMEncoder {
     static String toPEM(byte[] bytes, String title)
         throws java.io.IOException
     {
-        return beginString(title) +
-            base64Encode(bytes) +
-            endString(title);
+        String begin = beginString(title);
+        String body = base64Encode(bytes);
+        String end = endString(title);
+        return new StringBuilder(begin.length() + body.length() + end.length())
+            .append(begin).append(body).append(end).toString();
     }
 
     /**
@@ -157,10 +384,13 @@ public class PEMEncoder {
         throws java.io.IOException
     {
         // Kudos to Java COG here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         byte[] b64data = Base64.encode(bytes);
-        int offset = 0;
         int length = b64data.length;
+        int lines = (length + maxLineLength - 1) / maxLineLength;
+        // Base64 is ASCII, so build the result directly in one buffer
+        char[] out = new char[length + lines];
+        int outOffset = 0;
+        int offset = 0;
         while (offset < length)
         {
             int bytesToWrite = maxLineLength;
@@ -168,10 +398,12 @@ public class PEMEncoder {
             {
                 bytesToWrite = length - offset;
             }
-            out.write(b64data, offset, bytesToWrite);
-            offset += bytesToWrite;
-            out.write("\n".getBytes());
+            for (int i = 0; i < bytesToWrite; i++)
+            {
+                out[outOffset++] = (char) b64data[offset++];
+            }
+            out[outOffset++] = '\n';
         }
-        return new String(out.toByteArray());
+        return new String(out);
     }
 }
@@ -0,0 +1,195 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+PrivateKeyEncryptor.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import javax.crypto.Cipher;
+import javax.crypto.spec.PBEParameterSpec;
+import org.bouncycastle.openssl.PEMWriter;
+
+/**
+ * Encrypts private keys written to PEM and PKCS12 files.
+ *
+ * Two schemes are supported:
+ * <ul>
+ * <li>"legacy": traditional OpenSSL DES-EDE3-CBC for RSA keys in PEM
+ * files, PBEWithSHA1AndDESede PKCS8 for other keys, and the JDK's
+ * default protection for PKCS12. Readable by any OpenSSL or Globus.</li>
+ * <li>"AES256": PKCS5 v2 (PBES2) with PBKDF2-HMAC-SHA256 and
+ * AES-256-CBC in both PEM (as encrypted PKCS8) and PKCS12 files, with a
+ * configurable PBKDF2 iteration count. Requires OpenSSL 1.0 or later to
+ * read.</li>
+ * </ul>
+ *
+ * The iteration count directly sets how long both we and an attacker
+ * spend per passphrase guess; see the bench-key-encryption target for
+ * what a given count costs.
+ *
+ * The Provider used by PEMWriter and the SecureRandom are looked up
+ * once and shared, as both are thread-safe and expensive to create.
+ */
+public class PrivateKeyEncryptor
+{
+    /** Legacy scheme name. */
+    public static final String LEGACY = "legacy";
+
+    /** PBES2 with AES-256 scheme name. */
+    public static final String AES256 = "AES256";
+
+    /** Default PBKDF2 iteration count. */
+    public static final int defaultIterations = 100000;
+
+    // Algorithm to encrypt non-RSA keys with in the legacy scheme, and
+    // its (fixed) iteration count
+    private static final String legacyPKCS8Alg = "PBEWithSHA1AndDESede";
+    private static final int legacyPKCS8Iterations = 2048;
+
+    // PKCS12 key protection algorithm for the AES256 scheme
+    private static final String pkcs12AES256Alg = "PBEWithHmacSHA256AndAES_256";
+
+    // Shared source of salts and IVs
+    private static final SecureRandom random = new SecureRandom();
+
+    // Name of provider PEMWriter encrypts with; null until looked up
+    private static String pemProviderName = null;
+
+    // Scheme to use
+    private String scheme;
+
+    // PBKDF2 iteration count for AES256 scheme
+    private int iterations;
+
+    /**
+     * Create an encryptor using the legacy scheme.
+     */
+    public PrivateKeyEncryptor()
+    {
+        this.scheme = LEGACY;
+        this.iterations = defaultIterations;
+    }
+
+    /**
+     * @param scheme "legacy" or "AES256" (case-insensitive).
+     * @param iterations PBKDF2 iteration count, 0 or less for the default.
+     * @throws java.security.NoSuchAlgorithmException if scheme is unknown.
+     */
+    public PrivateKeyEncryptor(String scheme, int iterations)
+            throws NoSuchAlgorithmException
+    {
+        if (LEGACY.equalsIgnoreCase(scheme))
+        {
+            this.scheme = LEGACY;
+        } else if (AES256.equalsIgnoreCase(scheme))
+        {
+            this.scheme = AES256;
+        } else
+        {
+            throw new NoSuchAlgorithmException(
+                    "Unknown key encryption scheme: " + scheme);
+        }
+        this.iterations = (iterations > 0) ? iterations : defaultIterations;
+    }
+
+    /**
+     * @return Scheme in use.
+     */
+    public String getScheme()
+    {
+        return this.scheme;
+    }
+
+    /**
+     * @return PBKDF2 iteration count.
+     */
+    public int getIterations()
+    {
+        return this.iterations;
+    }
+
+    /**
+     * Encrypt a private key for inclusion in a PEM file.
+     * @param key Private key to encrypt.
+     * @param passphrase Passphrase to encrypt with.
+     * @return PEM-encoded encrypted private key.
+     * @throws java.io.IOException
+     */
+    public String encryptToPEM(PrivateKey key, char[] passphrase)
+            throws IOException
+    {
+        try
+        {
+            if (AES256.equalsIgnoreCase(this.scheme))
+            {
+                return PEMEncoder.encodePBES2PrivateKey(key, passphrase,
+                        this.iterations, random);
+            }
+            if (key instanceof RSAPrivateKey)
+            {
+                StringWriter out = new StringWriter();
+                PEMWriter pemWriter = new PEMWriter(out, getPEMProviderName());
+                pemWriter.writeObject(key, "DES-EDE3-CBC", passphrase, random);
+                pemWriter.close();
+                return out.toString();
+            }
+            // PEMWriter only knows RSA and DSA keys, so write anything
+            // else (i.e. EC) as PKCS8, which OpenSSL reads just as well.
+            return PEMEncoder.encodeEncryptedPKCS8PrivateKey(key, passphrase,
+                    legacyPKCS8Alg, legacyPKCS8Iterations, random);
+        } catch (GeneralSecurityException e)
+        {
+            throw new IOException("Error encrypting private key: " +
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Return the protection to give a private key stored in a PKCS12
+     * KeyStore.
+     * @param password Password to protect key with.
+     * @return Protection parameter for KeyStore.setEntry().
+     */
+    public KeyStore.ProtectionParameter getPKCS12Protection(char[] password)
+    {
+        if (AES256.equalsIgnoreCase(this.scheme))
+        {
+            byte[] salt = new byte[16];
+            random.nextBytes(salt);
+            return new KeyStore.PasswordProtection(password, pkcs12AES256Alg,
+                    new PBEParameterSpec(salt, this.iterations));
+        }
+        return new KeyStore.PasswordProtection(password);
+    }
+
+    /**
+     * @return Name of a trusted provider that can encrypt keys for
+     * PEMWriter, or null to let it choose.
+     */
+    private static synchronized String getPEMProviderName()
+    {
+        if (pemProviderName == null)
+        {
+            try
+            {
+                Cipher c = Cipher.getInstance("DES/CBC/NoPadding");
+                pemProviderName = c.getProvider().getName();
+            } catch (GeneralSecurityException e)
+            {
+                // Leave null so PEMWriter uses its default
+            }
+        }
+        return pemProviderName;
+    }
+}
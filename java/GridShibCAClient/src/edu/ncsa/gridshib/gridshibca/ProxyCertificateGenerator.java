@@ -0,0 +1,285 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+ProxyCertificateGenerator.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Date;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERPrintableString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+/**
+ * Signs RFC 3820 proxy certificates locally with a credential we already
+ * hold (e.g. the one read back from the .p12 written by
+ * Credential.writeToPKCS12File()), so short-lived credentials don't each
+ * need a trip to the GridShib-CA.
+ *
+ * Configure with the setters before use; generating proxies does not
+ * modify the generator, so one instance may then be shared by threads.
+ */
+public class ProxyCertificateGenerator
+{
+    /** Policy language: proxy inherits all rights of its issuer. */
+    public static final String INHERIT_ALL = "1.3.6.1.5.5.7.21.1";
+
+    /** Policy language: proxy has no rights beyond its own identity. */
+    public static final String INDEPENDENT = "1.3.6.1.5.5.7.21.2";
+
+    /** Policy language: Globus limited proxy (cannot submit jobs). */
+    public static final String LIMITED = "1.3.6.1.4.1.3536.1.1.1.9";
+
+    // ProxyCertInfo extension (RFC 3820)
+    private static final String proxyCertInfoOID = "1.3.6.1.5.5.7.1.14";
+
+    // Back-date proxies this much to tolerate clock skew, in milliseconds
+    private static final long clockSkewMillis = 5 * 60 * 1000;
+
+    // Shared source of serial numbers
+    private static final SecureRandom random = new SecureRandom();
+
+    // Proxy lifetime in seconds
+    private long lifetime = 12 * 60 * 60;
+
+    // Policy language OID and optional policy
+    private String policyLanguage = INHERIT_ALL;
+    private byte[] policy = null;
+
+    // Maximum proxies that may follow ours, or -1 for unlimited
+    private int pathLength = -1;
+
+    // Algorithm and size of generated keys, null/0 to match the issuer
+    private String keyAlg = null;
+    private int keySize = 0;
+
+    /**
+     * @param seconds Lifetime of generated proxies. Proxies never outlive
+     * their issuer.
+     */
+    public void setLifetime(long seconds)
+    {
+        if (seconds <= 0)
+        {
+            throw new IllegalArgumentException("Bad proxy lifetime: " + seconds);
+        }
+        this.lifetime = seconds;
+    }
+
+    /**
+     * @return Lifetime of generated proxies in seconds.
+     */
+    public long getLifetime()
+    {
+        return this.lifetime;
+    }
+
+    /**
+     * Set the proxy policy.
+     * @param language Policy language OID, e.g. INHERIT_ALL, LIMITED or
+     * INDEPENDENT.
+     * @param policy Policy expressed in language, or null for none.
+     */
+    public void setPolicy(String language, byte[] policy)
+    {
+        if (language == null)
+        {
+            throw new IllegalArgumentException("null policy language");
+        }
+        this.policyLanguage = language;
+        this.policy = policy;
+    }
+
+    /**
+     * Set the proxy policy by name.
+     * @param name "inheritAll", "limited" or "independent"
+     * (case-insensitive), or a policy language OID.
+     */
+    public void setPolicy(String name)
+    {
+        if ("inheritAll".equalsIgnoreCase(name))
+        {
+            setPolicy(INHERIT_ALL, null);
+        } else if ("limited".equalsIgnoreCase(name))
+        {
+            setPolicy(LIMITED, null);
+        } else if ("independent".equalsIgnoreCase(name))
+        {
+            setPolicy(INDEPENDENT, null);
+        } else
+        {
+            setPolicy(name, null);
+        }
+    }
+
+    /**
+     * @param pathLength Maximum number of proxies that may be signed below
+     * generated proxies, or -1 for no limit.
+     */
+    public void setPathLength(int pathLength)
+    {
+        this.pathLength = (pathLength < 0) ? -1 : pathLength;
+    }
+
+    /**
+     * @param keyAlg Algorithm for proxy keys ("RSA" or "EC"), or null to
+     * use the issuer's.
+     * @param keySize Proxy key size, or 0 for the algorithm default.
+     */
+    public void setKeyAlgorithm(String keyAlg, int keySize)
+    {
+        this.keyAlg = keyAlg;
+        this.keySize = keySize;
+    }
+
+    /**
+     * Generate a key pair and sign a proxy certificate for it.
+     * @param issuer Credential to sign the proxy with.
+     * @return Proxy credential, including issuer's certificate chain.
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    public Credential createProxy(Credential issuer)
+            throws IOException, GeneralSecurityException
+    {
+        KeyPair keyPair = Credential.getKeyPairEngine().genKeyPair(
+            getKeySize(issuer), getKeyAlgorithm(issuer));
+        return createProxy(issuer, keyPair);
+    }
+
+    /**
+     * @param issuer Credential proxies will be signed with.
+     * @return Algorithm of proxy keys.
+     */
+    String getKeyAlgorithm(Credential issuer)
+    {
+        return (this.keyAlg != null) ? this.keyAlg : issuer.getKeyAlgorithm();
+    }
+
+    /**
+     * @param issuer Credential proxies will be signed with.
+     * @return Size of proxy keys.
+     */
+    int getKeySize(Credential issuer)
+    {
+        return (this.keySize > 0) ? this.keySize :
+            Credential.getDefaultKeySize(getKeyAlgorithm(issuer));
+    }
+
+    /**
+     * Sign a proxy certificate for the given key pair.
+     * @param issuer Credential to sign the proxy with.
+     * @param keyPair Key pair for the proxy.
+     * @return Proxy credential, including issuer's certificate chain.
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    public Credential createProxy(Credential issuer, KeyPair keyPair)
+            throws IOException, GeneralSecurityException
+    {
+        KeyPair issuerKeyPair = issuer.getKeyPair();
+        X509Certificate issuerCert = issuer.getCertificate();
+        if ((issuerKeyPair == null) || (issuerCert == null))
+        {
+            throw new IOException("Issuing credential has no certificate");
+        }
+
+        long now = System.currentTimeMillis();
+        Date notAfter = new Date(now + this.lifetime * 1000);
+        if (notAfter.after(issuerCert.getNotAfter()))
+        {
+            notAfter = issuerCert.getNotAfter();
+        }
+        // RFC 3820 suggests the serial number as the proxy's CN
+        BigInteger serial = new BigInteger(63, random);
+
+        X509V3CertificateGenerator certGenerator =
+            new X509V3CertificateGenerator();
+        certGenerator.setSerialNumber(serial);
+        certGenerator.setIssuerDN(issuerCert.getSubjectX500Principal());
+        certGenerator.setSubjectDN(proxySubject(issuerCert, serial));
+        certGenerator.setNotBefore(new Date(now - clockSkewMillis));
+        certGenerator.setNotAfter(notAfter);
+        certGenerator.setPublicKey(keyPair.getPublic());
+        certGenerator.setSignatureAlgorithm(
+            Credential.getSigAlgName(issuerKeyPair.getPublic()));
+        certGenerator.addExtension(proxyCertInfoOID, true, proxyCertInfo());
+        int usage = KeyUsage.digitalSignature;
+        if (keyPair.getPublic() instanceof RSAPublicKey)
+        {
+            usage |= KeyUsage.keyEncipherment;
+        }
+        certGenerator.addExtension(X509Extensions.KeyUsage, true,
+            new KeyUsage(usage));
+
+        String provider = issuer.getKeyProvider();
+        X509Certificate proxyCert = (provider == null) ?
+            certGenerator.generate(issuerKeyPair.getPrivate(), random) :
+            certGenerator.generate(issuerKeyPair.getPrivate(), provider, random);
+        return new Credential(keyPair, null, proxyCert,
+            issuer.getCertificateChain());
+    }
+
+    /**
+     * @return Issuer's subject with a CN of the serial number appended.
+     */
+    private static X509Name proxySubject(X509Certificate issuerCert,
+                                         BigInteger serial)
+            throws IOException
+    {
+        // Copy the issuer's RDNs as encoded rather than via a string so
+        // the proxy subject is an exact extension of it.
+        ASN1Sequence issuerSubject = (ASN1Sequence) new ASN1InputStream(
+            issuerCert.getSubjectX500Principal().getEncoded()).readObject();
+        ASN1EncodableVector rdns = new ASN1EncodableVector();
+        for (int i = 0; i < issuerSubject.size(); i++)
+        {
+            rdns.add(issuerSubject.getObjectAt(i));
+        }
+        ASN1EncodableVector cn = new ASN1EncodableVector();
+        cn.add(X509Name.CN);
+        cn.add(new DERPrintableString(serial.toString()));
+        rdns.add(new DERSet(new DERSequence(cn)));
+        return new X509Name(new DERSequence(rdns));
+    }
+
+    /**
+     * @return ProxyCertInfo extension value for our path length and policy.
+     */
+    private DERSequence proxyCertInfo()
+    {
+        ASN1EncodableVector proxyPolicy = new ASN1EncodableVector();
+        proxyPolicy.add(new DERObjectIdentifier(this.policyLanguage));
+        if (this.policy != null)
+        {
+            proxyPolicy.add(new DEROctetString(this.policy));
+        }
+        ASN1EncodableVector info = new ASN1EncodableVector();
+        if (this.pathLength >= 0)
+        {
+            info.add(new DERInteger(this.pathLength));
+        }
+        info.add(new DERSequence(proxyPolicy));
+        return new DERSequence(info);
+    }
+}
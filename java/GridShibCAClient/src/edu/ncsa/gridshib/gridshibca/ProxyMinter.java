@@ -0,0 +1,283 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+ProxyMinter.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mints many proxy credentials from one issuing credential in parallel,
+ * e.g. one per job for a workflow submitter.
+ *
+ * Each proxy gets its own key pair, is signed by a shared
+ * ProxyCertificateGenerator and written, owner-only, to its own file. Work
+ * runs on a fixed pool of threads with a bounded queue; when the queue is
+ * full the submitting thread mints the next proxy itself, so memory use
+ * doesn't grow with the batch size.
+ */
+public class ProxyMinter
+{
+    // Credential proxies are signed with
+    private Credential issuer;
+
+    // Signs proxies; configured by the caller
+    private ProxyCertificateGenerator generator;
+
+    // Number of worker threads
+    private int threads;
+
+    // Key pairs are generated in the worker threads themselves; racing
+    // generators as Credential does would just compete with other workers.
+    private KeyPairEngine keyPairEngine = new SimpleKeyPairEngine();
+
+    /**
+     * @param issuer Credential to sign proxies with.
+     * @param generator Generator configured with proxy lifetime, policy
+     * and key algorithm.
+     * @param threads Worker threads, 0 or less for one per processor.
+     */
+    public ProxyMinter(Credential issuer, ProxyCertificateGenerator generator,
+                       int threads)
+    {
+        this.issuer = issuer;
+        this.generator = generator;
+        this.threads = (threads > 0) ? threads :
+            Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return Number of worker threads.
+     */
+    public int getThreads()
+    {
+        return this.threads;
+    }
+
+    /**
+     * Mint one proxy per path, returning once all have been written. If any
+     * proxy fails the rest are abandoned.
+     * @param paths Files to write proxies to.
+     * @return Timings for the batch.
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    public Statistics mint(List<String> paths)
+            throws IOException, GeneralSecurityException
+    {
+        final Statistics stats = new Statistics();
+        final String keyAlg = this.generator.getKeyAlgorithm(this.issuer);
+        final int keySize = this.generator.getKeySize(this.issuer);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            this.threads, this.threads, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(4 * this.threads),
+            new ThreadFactory()
+            {
+                private AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r,
+                        "GridShibCA-mint-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        // Finished proxies are checked as we go, so a failure stops the
+        // batch at the next submit and we don't hold a Future per proxy
+        CompletionService<Void> results =
+            new ExecutorCompletionService<Void>(executor);
+        int pending = 0;
+        long start = System.nanoTime();
+        try
+        {
+            for (final String path : paths)
+            {
+                results.submit(new Callable<Void>()
+                {
+                    public Void call()
+                            throws Exception
+                    {
+                        long t0 = System.nanoTime();
+                        KeyPair keyPair = keyPairEngine.genKeyPair(keySize, keyAlg);
+                        long t1 = System.nanoTime();
+                        Credential proxy = generator.createProxy(issuer, keyPair);
+                        long t2 = System.nanoTime();
+                        proxy.writeToFile(path);
+                        long t3 = System.nanoTime();
+                        stats.record(t1 - t0, t2 - t1, t3 - t2);
+                        return null;
+                    }
+                });
+                pending++;
+                Future<Void> done;
+                while ((done = results.poll()) != null)
+                {
+                    pending--;
+                    await(done);
+                }
+            }
+            for (; pending > 0; pending--)
+            {
+                await(take(results));
+            }
+        } finally
+        {
+            executor.shutdownNow();
+        }
+        stats.elapsedNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    /**
+     * @return Next proxy to finish.
+     */
+    private static Future<Void> take(CompletionService<Void> results)
+            throws IOException
+    {
+        try
+        {
+            return results.take();
+        } catch (InterruptedException e)
+        {
+            throw new IOException("Interrupted minting proxies");
+        }
+    }
+
+    /**
+     * Wait for a proxy, unwrapping any failure.
+     */
+    private static void await(Future<Void> result)
+            throws IOException, GeneralSecurityException
+    {
+        try
+        {
+            result.get();
+        } catch (InterruptedException e)
+        {
+            throw new IOException("Interrupted minting proxies");
+        } catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GeneralSecurityException)
+            {
+                throw (GeneralSecurityException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Proxy minting failed", cause);
+        }
+    }
+
+    /**
+     * Throughput and per-stage timings of a batch. Stage times are summed
+     * over all workers, so with several threads they add up to more than
+     * the elapsed time.
+     */
+    public static class Statistics
+    {
+        private AtomicInteger count = new AtomicInteger();
+        private AtomicLong keyGenNanos = new AtomicLong();
+        private AtomicLong signNanos = new AtomicLong();
+        private AtomicLong writeNanos = new AtomicLong();
+        private volatile long elapsedNanos = 0;
+
+        void record(long keyGen, long sign, long write)
+        {
+            this.keyGenNanos.addAndGet(keyGen);
+            this.signNanos.addAndGet(sign);
+            this.writeNanos.addAndGet(write);
+            this.count.incrementAndGet();
+        }
+
+        /**
+         * @return Number of proxies minted.
+         */
+        public int getCount()
+        {
+            return this.count.get();
+        }
+
+        /**
+         * @return Wall-clock time for the batch in milliseconds.
+         */
+        public double getElapsedMillis()
+        {
+            return this.elapsedNanos / 1e6;
+        }
+
+        /**
+         * @return Proxies minted per second.
+         */
+        public double getThroughput()
+        {
+            return (this.elapsedNanos == 0) ? 0 :
+                this.count.get() / (this.elapsedNanos / 1e9);
+        }
+
+        /**
+         * @return Mean key generation time per proxy in milliseconds.
+         */
+        public double getMeanKeyGenMillis()
+        {
+            return mean(this.keyGenNanos);
+        }
+
+        /**
+         * @return Mean signing time per proxy in milliseconds.
+         */
+        public double getMeanSignMillis()
+        {
+            return mean(this.signNanos);
+        }
+
+        /**
+         * @return Mean file writing time per proxy in milliseconds.
+         */
+        public double getMeanWriteMillis()
+        {
+            return mean(this.writeNanos);
+        }
+
+        private double mean(AtomicLong totalNanos)
+        {
+            int n = this.count.get();
+            return (n == 0) ? 0 : totalNanos.get() / 1e6 / n;
+        }
+
+        public String toString()
+        {
+            return String.format(
+                "%d proxies in %.1f ms (%.1f proxies/s); " +
+                "per proxy: keygen %.3f ms, sign %.3f ms, write %.3f ms",
+                getCount(), getElapsedMillis(), getThroughput(),
+                getMeanKeyGenMillis(), getMeanSignMillis(),
+                getMeanWriteMillis());
+        }
+    }
+}
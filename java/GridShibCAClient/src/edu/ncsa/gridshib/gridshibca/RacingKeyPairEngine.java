@@ -0,0 +1,231 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+RacingKeyPairEngine.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates RSA key pairs by racing several independent generators and
+ * taking whichever finishes first.
+ *
+ * The time to find RSA primes varies a lot from run to run, so the fastest
+ * of N generators is much less likely to land in the long tail than a
+ * single one. Other key algorithms (e.g. EC) have no such tail and are
+ * generated by a single generator.
+ *
+ * Losing generators cannot be interrupted in the middle of their prime
+ * search; they are cancelled and run to completion on the pool's daemon
+ * threads with their results discarded. The latency racing saves is
+ * therefore paid for in CPU time, roughly one whole generation per racer,
+ * which getGeneratorCpuNanos() reports. By default one processor is left
+ * free of racers so the rest of the client isn't starved while they run.
+ */
+public class RacingKeyPairEngine
+        implements KeyPairEngine
+{
+    // Number of generators to race
+    private int racers;
+
+    // Pool running the generators, created on first use
+    private ForkJoinPool pool = null;
+
+    // True once shut down; we then no longer race
+    private boolean shutdown = false;
+
+    // Engine for when we aren't racing
+    private KeyPairEngine simpleEngine = new SimpleKeyPairEngine();
+
+    // CPU time used by raced generators, winners and losers, in nanoseconds
+    private AtomicLong generatorCpuNanos = new AtomicLong();
+
+    private static final ThreadMXBean threadBean =
+            ManagementFactory.getThreadMXBean();
+
+    /**
+     * Create an engine racing one generator per available processor but
+     * one.
+     */
+    public RacingKeyPairEngine()
+    {
+        this(0);
+    }
+
+    /**
+     * Create an engine.
+     * @param racers Number of generators to race. 0 means one per
+     * available processor but one, so racing is disabled on a single
+     * processor; 1 disables racing.
+     */
+    public RacingKeyPairEngine(int racers)
+    {
+        if (racers <= 0)
+        {
+            racers = Math.max(1,
+                    Runtime.getRuntime().availableProcessors() - 1);
+        }
+        this.racers = racers;
+    }
+
+    /**
+     * @return Number of generators raced for RSA keys.
+     */
+    public int getRacers()
+    {
+        return this.racers;
+    }
+
+    /**
+     * @return CPU time used so far by raced generators, including losers
+     * still running, in nanoseconds. Zero if the JVM can't measure
+     * thread CPU time.
+     */
+    public long getGeneratorCpuNanos()
+    {
+        return this.generatorCpuNanos.get();
+    }
+
+    public KeyPair genKeyPair(final int keySize, final String keyAlg)
+            throws NoSuchAlgorithmException, IOException
+    {
+        if ((this.racers <= 1) || !"RSA".equalsIgnoreCase(keyAlg))
+        {
+            return this.simpleEngine.genKeyPair(keySize, keyAlg);
+        }
+
+        List<Callable<KeyPair>> generators =
+                new ArrayList<Callable<KeyPair>>(this.racers);
+        for (int i = 0; i < this.racers; i++)
+        {
+            generators.add(new Callable<KeyPair>()
+            {
+                public KeyPair call()
+                        throws Exception
+                {
+                    long start = threadCpuNanos();
+                    try
+                    {
+                        return simpleEngine.genKeyPair(keySize, keyAlg);
+                    } finally
+                    {
+                        long end = threadCpuNanos();
+                        if ((start >= 0) && (end >= 0))
+                        {
+                            generatorCpuNanos.addAndGet(end - start);
+                        }
+                    }
+                }
+            });
+        }
+
+        ForkJoinPool pool = getPool();
+        if (pool == null)
+        {
+            return this.simpleEngine.genKeyPair(keySize, keyAlg);
+        }
+        try
+        {
+            // Returns the first successful result and cancels the rest
+            return pool.invokeAny(generators);
+        } catch (RejectedExecutionException e)
+        {
+            // Shut down since we got the pool
+            return this.simpleEngine.genKeyPair(keySize, keyAlg);
+        } catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted during key generation");
+        } catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchAlgorithmException)
+            {
+                throw (NoSuchAlgorithmException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Key generation failed: " + cause);
+        }
+    }
+
+    /**
+     * Stop racing, e.g. because this engine has been replaced. Generations
+     * under way finish, after which the pool's threads exit; any later
+     * keys are generated by a single generator.
+     */
+    public synchronized void shutdown()
+    {
+        this.shutdown = true;
+        if (this.pool != null)
+        {
+            this.pool.shutdown();
+        }
+    }
+
+    /**
+     * Wait for generations under way, including losers, to finish after
+     * shutdown().
+     * @param timeout Time to wait, in milliseconds.
+     * @return True if all finished, false on timeout.
+     * @throws java.lang.InterruptedException
+     */
+    boolean awaitTermination(long timeout)
+            throws InterruptedException
+    {
+        ForkJoinPool pool;
+        synchronized (this)
+        {
+            pool = this.pool;
+        }
+        return (pool == null) ||
+            pool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return CPU time of the current thread in nanoseconds, or -1 if it
+     * can't be measured.
+     */
+    private static long threadCpuNanos()
+    {
+        if (!threadBean.isCurrentThreadCpuTimeSupported())
+        {
+            return -1;
+        }
+        return threadBean.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * @return Our pool, created on first use, or null if shut down.
+     */
+    private synchronized ForkJoinPool getPool()
+    {
+        if (this.shutdown)
+        {
+            return null;
+        }
+        if (this.pool == null)
+        {
+            this.pool = new ForkJoinPool(this.racers);
+        }
+        return this.pool;
+    }
+}
@@ -0,0 +1,293 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+RequestTiming.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.util.Locale;
+
+/**
+ * Where the time for one request to the server went: DNS lookup, TCP
+ * connect, TLS handshake, waiting for the server's first byte and reading
+ * the response.
+ *
+ * GridShibCAURL records the request milestones. Connect and handshake
+ * happen inside HttpURLConnection, so CountingSSLSocketFactory records
+ * those against the request in progress on the connecting thread.
+ */
+class RequestTiming
+{
+    // Request being made on each thread
+    private static final ThreadLocal<RequestTiming> current =
+        new ThreadLocal<RequestTiming>();
+
+    // What was requested
+    private String url;
+    private String name = null;
+
+    // Milestones, from System.nanoTime(), 0 if not reached
+    private long startNanos;
+    private long sentNanos = 0;
+    private long headersNanos = 0;
+    private long endNanos = 0;
+
+    // Phase durations, -1 if they didn't happen (e.g. connection reused)
+    private long dnsNanos = -1;
+    private long connectNanos = -1;
+    private long handshakeNanos = -1;
+
+    // TLS session used if we made a new connection
+    private String protocol = null;
+    private String cipherSuite = null;
+    private boolean resumed = false;
+
+    private int status = -1;
+    private long bytesReceived = 0;
+    private long responseBytes = 0;
+    private String error = null;
+
+    /**
+     * Start timing a request made on this thread.
+     * @param url URL requested.
+     * @return New timing, now current on this thread.
+     */
+    static RequestTiming begin(String url)
+    {
+        RequestTiming timing = new RequestTiming();
+        timing.url = url;
+        timing.startNanos = System.nanoTime();
+        current.set(timing);
+        return timing;
+    }
+
+    /**
+     * @return Timing of the request being made on this thread, or null.
+     */
+    static RequestTiming current()
+    {
+        return current.get();
+    }
+
+    /**
+     * @param name Short name for the request, e.g. the command posted.
+     */
+    void setName(String name)
+    {
+        this.name = name;
+    }
+
+    void dnsDone(long nanos)
+    {
+        this.dnsNanos = nanos;
+    }
+
+    void connectDone(long nanos)
+    {
+        this.connectNanos = nanos;
+    }
+
+    void handshakeDone(long nanos, String protocol, String cipherSuite,
+                       boolean resumed)
+    {
+        this.handshakeNanos = nanos;
+        this.protocol = protocol;
+        this.cipherSuite = cipherSuite;
+        this.resumed = resumed;
+    }
+
+    /**
+     * Note the request has been sent.
+     */
+    void sent()
+    {
+        this.sentNanos = System.nanoTime();
+    }
+
+    /**
+     * Note the response headers have arrived.
+     * @param status HTTP status.
+     */
+    void headersReceived(int status)
+    {
+        if (this.headersNanos == 0)
+        {
+            this.headersNanos = System.nanoTime();
+            this.status = status;
+        }
+    }
+
+    /**
+     * Note the request failed.
+     * @param error Description of failure.
+     */
+    void failed(String error)
+    {
+        this.error = error;
+    }
+
+    /**
+     * Finish timing the request.
+     * @param bytesReceived Response bytes received.
+     * @param responseBytes Response bytes after inflating.
+     */
+    void end(long bytesReceived, long responseBytes)
+    {
+        this.endNanos = System.nanoTime();
+        this.bytesReceived = bytesReceived;
+        this.responseBytes = responseBytes;
+        if (current.get() == this)
+        {
+            current.remove();
+        }
+    }
+
+    /**
+     * @return True if the request made its own connection.
+     */
+    boolean isNewConnection()
+    {
+        return this.connectNanos >= 0 || this.handshakeNanos >= 0;
+    }
+
+    /**
+     * @return Nanoseconds from sending the request (or connecting, if
+     * nothing was sent explicitly) to the response headers, -1 if there
+     * was no response.
+     */
+    long getTimeToFirstByteNanos()
+    {
+        if (this.headersNanos == 0)
+        {
+            return -1;
+        }
+        long from = this.sentNanos;
+        if (from == 0)
+        {
+            from = this.startNanos + Math.max(0, this.dnsNanos) +
+                Math.max(0, this.connectNanos) + Math.max(0, this.handshakeNanos);
+        }
+        return Math.max(0, this.headersNanos - from);
+    }
+
+    /**
+     * @return Nanoseconds spent reading the response after its headers,
+     * -1 if there was no response.
+     */
+    long getTransferNanos()
+    {
+        return ((this.headersNanos == 0) || (this.endNanos == 0)) ? -1 :
+            this.endNanos - this.headersNanos;
+    }
+
+    /**
+     * @return Nanoseconds for the whole request.
+     */
+    long getTotalNanos()
+    {
+        return ((this.endNanos == 0) ? System.nanoTime() : this.endNanos) -
+            this.startNanos;
+    }
+
+    /**
+     * @return One-line summary for the debug log.
+     */
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder();
+        s.append((this.name != null) ? this.name : this.url).append(": ");
+        s.append("DNS ").append(millis(this.dnsNanos));
+        if (isNewConnection())
+        {
+            s.append(", connect ").append(millis(this.connectNanos));
+            s.append(", handshake ").append(millis(this.handshakeNanos));
+            if (this.protocol != null)
+            {
+                s.append(" (").append(this.protocol).append(' ')
+                    .append(this.cipherSuite)
+                    .append(this.resumed ? ", resumed)" : ", full)");
+            }
+        } else
+        {
+            s.append(", reused connection");
+        }
+        s.append(", first byte ").append(millis(getTimeToFirstByteNanos()));
+        s.append(", transfer ").append(millis(getTransferNanos()));
+        s.append(", total ").append(millis(getTotalNanos()));
+        s.append("; status ").append(this.status);
+        s.append(", ").append(this.bytesReceived).append(" bytes");
+        if (this.error != null)
+        {
+            s.append("; failed: ").append(this.error);
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return JSON object describing the request; durations are in
+     * milliseconds, null where a phase didn't happen.
+     */
+    String toJSON()
+    {
+        StringBuilder s = new StringBuilder("{");
+        s.append("\"name\": ").append(quote(this.name));
+        s.append(", \"url\": ").append(quote(this.url));
+        s.append(", \"status\": ").append(this.status);
+        s.append(", \"newConnection\": ").append(isNewConnection());
+        s.append(", \"protocol\": ").append(quote(this.protocol));
+        s.append(", \"cipherSuite\": ").append(quote(this.cipherSuite));
+        s.append(", \"resumed\": ").append(this.resumed);
+        s.append(", \"dnsMs\": ").append(jsonMillis(this.dnsNanos));
+        s.append(", \"connectMs\": ").append(jsonMillis(this.connectNanos));
+        s.append(", \"handshakeMs\": ").append(jsonMillis(this.handshakeNanos));
+        s.append(", \"firstByteMs\": ").append(jsonMillis(getTimeToFirstByteNanos()));
+        s.append(", \"transferMs\": ").append(jsonMillis(getTransferNanos()));
+        s.append(", \"totalMs\": ").append(jsonMillis(getTotalNanos()));
+        s.append(", \"bytesReceived\": ").append(this.bytesReceived);
+        s.append(", \"responseBytes\": ").append(this.responseBytes);
+        s.append(", \"error\": ").append(quote(this.error));
+        return s.append('}').toString();
+    }
+
+    private static String millis(long nanos)
+    {
+        return (nanos < 0) ? "-" : String.format("%.1f ms", nanos / 1e6);
+    }
+
+    private static String jsonMillis(long nanos)
+    {
+        // Locale.US so the decimal point is always a point
+        return (nanos < 0) ? "null" :
+            String.format(Locale.US, "%.3f", nanos / 1e6);
+    }
+
+    /**
+     * @return s as a JSON string, or null.
+     */
+    static String quote(String s)
+    {
+        if (s == null)
+        {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\'))
+            {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20)
+            {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else
+            {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
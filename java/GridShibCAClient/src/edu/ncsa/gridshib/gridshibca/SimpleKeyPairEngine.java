@@ -0,0 +1,28 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+SimpleKeyPairEngine.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Generates key pairs with a single KeyPairGenerator in the calling thread.
+ */
+public class SimpleKeyPairEngine
+        implements KeyPairEngine
+{
+    public KeyPair genKeyPair(int keySize, String keyAlg)
+            throws NoSuchAlgorithmException
+    {
+        KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance(keyAlg);
+        keyGenerator.initialize(keySize);
+        return keyGenerator.genKeyPair();
+    }
+}
@@ -0,0 +1,199 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+SocketTuning.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * TCP and TLS settings for our connections to the server:
+ * TCP_NODELAY, socket buffer sizes, the TLS protocols enabled and the
+ * order cipher suites are offered in.
+ *
+ * Protocols and cipher suites are given as comma-separated preference
+ * lists; names the JVM doesn't support are dropped, and "default" leaves
+ * the JVM's choice alone. For cipher suites, "fast" offers the suites
+ * with the cheapest handshake and bulk encryption first (see
+ * fastCipherSuites) followed by the rest of the JVM's defaults.
+ */
+class SocketTuning
+{
+    /** Leave the JVM's protocols or cipher suites as they are. */
+    static final String DEFAULT = "default";
+
+    /** Offer fastCipherSuites first. */
+    static final String FAST = "fast";
+
+    // TLS 1.3 suites, then TLS 1.2 suites with ECDHE key exchange
+    // (forward secret, and cheap with elliptic curves) and AEAD ciphers.
+    // AES-GCM comes before ChaCha20 as most CPUs accelerate it, and
+    // 128-bit keys before 256-bit as they need fewer rounds.
+    private static final String[] fastCipherSuites =
+    {
+        "TLS_AES_128_GCM_SHA256",
+        "TLS_CHACHA20_POLY1305_SHA256",
+        "TLS_AES_256_GCM_SHA384",
+        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+        "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"
+    };
+
+    private boolean tcpNoDelay;
+
+    // Socket buffer sizes in bytes, 0 for the system default
+    private int sendBufferSize;
+    private int receiveBufferSize;
+
+    // Preference lists, or DEFAULT
+    private String protocols;
+    private String cipherSuites;
+
+    /**
+     * @param tcpNoDelay Disable Nagle's algorithm, so the small writes of
+     * a request aren't held back waiting for acknowledgements.
+     * @param sendBufferSize SO_SNDBUF in bytes, 0 for the system default.
+     * @param receiveBufferSize SO_RCVBUF in bytes, 0 for the system
+     * default.
+     * @param protocols TLS protocols to enable, most preferred first, or
+     * DEFAULT.
+     * @param cipherSuites Cipher suites to offer, most preferred first,
+     * FAST or DEFAULT.
+     */
+    SocketTuning(boolean tcpNoDelay, int sendBufferSize,
+                 int receiveBufferSize, String protocols, String cipherSuites)
+    {
+        this.tcpNoDelay = tcpNoDelay;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.protocols = protocols.trim();
+        this.cipherSuites = cipherSuites.trim();
+    }
+
+    /**
+     * @return Tuning given by the TCPNoDelay, SocketSendBuffer,
+     * SocketReceiveBuffer, TLSProtocols and TLSCipherSuites properties.
+     */
+    static SocketTuning fromProperties()
+    {
+        return new SocketTuning(
+            GridShibCAProperties.getPropertyAsBoolean("TCPNoDelay").booleanValue(),
+            GridShibCAProperties.getPropertyAsInt("SocketSendBuffer"),
+            GridShibCAProperties.getPropertyAsInt("SocketReceiveBuffer"),
+            GridShibCAProperties.getProperty("TLSProtocols"),
+            GridShibCAProperties.getProperty("TLSCipherSuites"));
+    }
+
+    /**
+     * Apply the TCP settings. Buffer sizes are best set before the socket
+     * connects, so the TCP window can be scaled to match.
+     * @param socket Socket to configure.
+     * @throws java.net.SocketException
+     */
+    void applyTo(Socket socket)
+            throws SocketException
+    {
+        socket.setTcpNoDelay(this.tcpNoDelay);
+        if (this.sendBufferSize > 0)
+        {
+            socket.setSendBufferSize(this.sendBufferSize);
+        }
+        if (this.receiveBufferSize > 0)
+        {
+            socket.setReceiveBufferSize(this.receiveBufferSize);
+        }
+    }
+
+    /**
+     * Apply the TLS settings, before the handshake.
+     * @param socket Socket to configure.
+     */
+    void applyTo(SSLSocket socket)
+    {
+        SSLParameters parameters = socket.getSSLParameters();
+        String[] chosen = choose(this.protocols, socket.getSupportedProtocols(),
+            parameters.getProtocols(), null);
+        if (chosen != null)
+        {
+            parameters.setProtocols(chosen);
+        }
+        chosen = choose(this.cipherSuites, socket.getSupportedCipherSuites(),
+            parameters.getCipherSuites(), fastCipherSuites);
+        if (chosen != null)
+        {
+            parameters.setCipherSuites(chosen);
+        }
+        socket.setSSLParameters(parameters);
+    }
+
+    /**
+     * @param preference Preference list, FAST or DEFAULT.
+     * @param supported Names the socket supports.
+     * @param enabled Names enabled by default, in default order.
+     * @param fast Names FAST puts first, or null if FAST doesn't apply.
+     * @return Names to enable, or null to leave the defaults.
+     */
+    private static String[] choose(String preference, String[] supported,
+                                   String[] enabled, String[] fast)
+    {
+        if (DEFAULT.equalsIgnoreCase(preference))
+        {
+            return null;
+        }
+        Set<String> chosen = new LinkedHashSet<String>();
+        if ((fast != null) && FAST.equalsIgnoreCase(preference))
+        {
+            // Only reorder the defaults, which exclude suites the JVM
+            // considers too weak
+            List<String> enabledList = Arrays.asList(enabled);
+            for (int i = 0; i < fast.length; i++)
+            {
+                if (enabledList.contains(fast[i]))
+                {
+                    chosen.add(fast[i]);
+                }
+            }
+            chosen.addAll(enabledList);
+        } else
+        {
+            List<String> supportedList = Arrays.asList(supported);
+            String[] names = preference.split(",");
+            for (int i = 0; i < names.length; i++)
+            {
+                String name = names[i].trim();
+                if (supportedList.contains(name))
+                {
+                    chosen.add(name);
+                }
+            }
+        }
+        // Better the defaults than nothing we can connect with
+        return chosen.isEmpty() ? null :
+            chosen.toArray(new String[chosen.size()]);
+    }
+
+    public String toString()
+    {
+        return "TCP_NODELAY " + this.tcpNoDelay +
+            ", send buffer " + ((this.sendBufferSize > 0) ?
+                                Integer.toString(this.sendBufferSize) : "default") +
+            ", receive buffer " + ((this.receiveBufferSize > 0) ?
+                                   Integer.toString(this.receiveBufferSize) : "default") +
+            ", protocols " + this.protocols +
+            ", cipher suites " + this.cipherSuites;
+    }
+}
@@ -0,0 +1,483 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+TrustRootsArchive.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts trust roots sent as a tar or zip archive, in one pass over the
+ * stream, handing each regular file to a TrustRootsParser.Handler as the
+ * text stream parser would. Files are passed on byte for byte.
+ *
+ * Zip entries are checked against their CRC-32 and tar headers against
+ * their checksum; a mismatch fails the extraction. So does an archive
+ * that ends before its end marker (a tar's zero block, a zip's central
+ * directory), as files missing from it would otherwise go unnoticed.
+ * Directories, links and other special entries are skipped, and entry
+ * names are used only for their last component by the handler.
+ */
+class TrustRootsArchive
+{
+    /** Archive formats we can extract, in order of preference. */
+    static final String TAR = "tar";
+    static final String ZIP = "zip";
+
+    // Size of a tar header or data block
+    private static final int tarBlock = 512;
+
+    // Offsets and lengths of tar (ustar) header fields
+    private static final int tarNameOffset = 0;
+    private static final int tarNameLength = 100;
+    private static final int tarSizeOffset = 124;
+    private static final int tarSizeLength = 12;
+    private static final int tarChecksumOffset = 148;
+    private static final int tarChecksumLength = 8;
+    private static final int tarTypeOffset = 156;
+    private static final int tarMagicOffset = 257;
+    private static final int tarPrefixOffset = 345;
+    private static final int tarPrefixLength = 155;
+
+    // Zip end of central directory record: signature and length without
+    // the comment, and offset of the total entries field
+    private static final int zipEndSignature = 0x06054b50;
+    private static final int zipEndLength = 22;
+    private static final int zipEndEntriesOffset = 10;
+    private static final int zipMaxCommentLength = 0xffff;
+
+    /**
+     * Keeps the last bytes read through it, so the end of a zip archive
+     * can be checked after ZipInputStream is done with it.
+     */
+    private static class TailInputStream
+            extends FilterInputStream
+    {
+        // Last bytes read, circular
+        private byte[] tail;
+        private long count = 0;
+
+        TailInputStream(InputStream in, int length)
+        {
+            super(in);
+            this.tail = new byte[length];
+        }
+
+        public int read()
+                throws IOException
+        {
+            int b = super.read();
+            if (b != -1)
+            {
+                this.tail[(int) (this.count++ % this.tail.length)] = (byte) b;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int offset, int length)
+                throws IOException
+        {
+            int n = super.read(b, offset, length);
+            for (int i = 0; i < n; i++)
+            {
+                this.tail[(int) (this.count++ % this.tail.length)] = b[offset + i];
+            }
+            return n;
+        }
+
+        public long skip(long length)
+                throws IOException
+        {
+            // Read rather than skip, so skipped bytes are kept too
+            byte[] b = new byte[(int) Math.min(length, 8192)];
+            int n = this.read(b, 0, b.length);
+            return Math.max(n, 0);
+        }
+
+        /**
+         * @return Last bytes read, oldest first.
+         */
+        byte[] getTail()
+        {
+            int length = (int) Math.min(this.count, this.tail.length);
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++)
+            {
+                bytes[i] = this.tail[(int) ((this.count - length + i) % this.tail.length)];
+            }
+            return bytes;
+        }
+    }
+
+    private TrustRootsArchive()
+    {
+    }
+
+    /**
+     * @param contentType Content type of a TrustRoots response.
+     * @return Archive format of the response, or null for the text stream.
+     */
+    static String formatOf(String contentType)
+    {
+        if (contentType == null)
+        {
+            return null;
+        }
+        String type = contentType.toLowerCase();
+        if (type.startsWith("application/x-tar"))
+        {
+            return TAR;
+        }
+        if (type.startsWith("application/zip"))
+        {
+            return ZIP;
+        }
+        return null;
+    }
+
+    /**
+     * Extract an archive.
+     * @param format TAR or ZIP.
+     * @param in Archive to read; not closed.
+     * @param handler Handler for the files found.
+     * @throws java.io.IOException
+     */
+    static void extract(String format, InputStream in,
+                        TrustRootsParser.Handler handler)
+            throws IOException
+    {
+        if (ZIP.equals(format))
+        {
+            extractZip(in, handler);
+        } else
+        {
+            extractTar(in, handler);
+        }
+    }
+
+    /**
+     * Extract a zip archive.
+     * @param in Archive to read; not closed.
+     * @param handler Handler for the files found.
+     * @throws java.io.IOException
+     */
+    static void extractZip(InputStream in, TrustRootsParser.Handler handler)
+            throws IOException
+    {
+        TailInputStream tail = new TailInputStream(in,
+                zipEndLength + zipMaxCommentLength);
+        ZipInputStream zip = new ZipInputStream(tail);
+        byte[] bytes = new byte[64 * 1024];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        ZipEntry entry;
+        int entries = 0;
+        while ((entry = zip.getNextEntry()) != null)
+        {
+            entries++;
+            if (entry.isDirectory())
+            {
+                continue;
+            }
+            handler.startFile(entry.getName());
+            int n;
+            // Reading to the end of the entry checks its CRC-32
+            while ((n = zip.read(bytes, 0, bytes.length)) != -1)
+            {
+                ((Buffer) buffer).clear();
+                ((Buffer) buffer).limit(n);
+                handler.data(buffer);
+            }
+            handler.endFile();
+        }
+        // ZipInputStream stops at whatever isn't an entry, including the
+        // end of a truncated archive, so read on to the central
+        // directory's end record and check it lists what we extracted
+        while (tail.read(bytes, 0, bytes.length) != -1)
+        {
+        }
+        checkZipEnd(tail.getTail(), entries);
+    }
+
+    /**
+     * Check a zip archive ends with an end of central directory record
+     * for the entries read.
+     * @param tail Last bytes of the archive.
+     * @param entries Number of entries read.
+     */
+    private static void checkZipEnd(byte[] tail, int entries)
+            throws IOException
+    {
+        int last = Math.max(0, tail.length - zipEndLength - zipMaxCommentLength);
+        for (int i = tail.length - zipEndLength; i >= last; i--)
+        {
+            if ((littleEndian(tail, i, 4) == zipEndSignature) &&
+                (i + zipEndLength + littleEndian(tail, i + zipEndLength - 2, 2) ==
+                 tail.length))
+            {
+                long total = littleEndian(tail, i + zipEndEntriesOffset, 2);
+                // All ones in a Zip64 archive, whose count is elsewhere
+                if ((total != 0xffff) && (total != entries))
+                {
+                    throw new IOException("Trust roots archive lists " + total +
+                            " entries but has " + entries);
+                }
+                return;
+            }
+        }
+        throw new EOFException("Trust roots archive truncated");
+    }
+
+    /**
+     * @return Unsigned little-endian value of length bytes at offset.
+     */
+    private static long littleEndian(byte[] bytes, int offset, int length)
+    {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--)
+        {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Extract a tar archive, as written by ustar, GNU or POSIX tar.
+     * @param in Archive to read; not closed.
+     * @param handler Handler for the files found.
+     * @throws java.io.IOException
+     */
+    static void extractTar(InputStream in, TrustRootsParser.Handler handler)
+            throws IOException
+    {
+        byte[] header = new byte[tarBlock];
+        byte[] bytes = new byte[64 * 1024];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        // Name from a preceding GNU long name entry, or null
+        String longName = null;
+        while (true)
+        {
+            if (!readBlock(in, header))
+            {
+                // The end-of-archive blocks are missing
+                throw new EOFException("Trust roots archive truncated");
+            }
+            if (isZero(header))
+            {
+                // End of archive
+                return;
+            }
+            checkTarChecksum(header);
+            long size = parseOctal(header, tarSizeOffset, tarSizeLength);
+            byte type = header[tarTypeOffset];
+            String name = tarName(header);
+            if ((type == 'L') && (size < bytes.length))
+            {
+                // GNU long name for the next entry
+                readFully(in, bytes, (int) padded(size));
+                int length = 0;
+                while ((length < size) && (bytes[length] != 0))
+                {
+                    length++;
+                }
+                longName = new String(bytes, 0, length, "UTF-8");
+                continue;
+            }
+            if ((type != '0') && (type != 0))
+            {
+                // Directory, link, POSIX extended header...
+                skip(in, padded(size));
+                longName = null;
+                continue;
+            }
+            handler.startFile((longName != null) ? longName : name);
+            longName = null;
+            long remaining = size;
+            while (remaining > 0)
+            {
+                int n = (int) Math.min(remaining, bytes.length);
+                readFully(in, bytes, n);
+                ((Buffer) buffer).clear();
+                ((Buffer) buffer).limit(n);
+                handler.data(buffer);
+                remaining -= n;
+            }
+            skip(in, padded(size) - size);
+            handler.endFile();
+        }
+    }
+
+    /**
+     * @return Name of a tar entry, with its ustar prefix if any.
+     */
+    private static String tarName(byte[] header)
+            throws IOException
+    {
+        String name = string(header, tarNameOffset, tarNameLength);
+        if ((header[tarMagicOffset] == 'u') &&
+            (header[tarMagicOffset + 1] == 's') &&
+            (header[tarMagicOffset + 2] == 't') &&
+            (header[tarMagicOffset + 3] == 'a') &&
+            (header[tarMagicOffset + 4] == 'r'))
+        {
+            String prefix = string(header, tarPrefixOffset, tarPrefixLength);
+            if (prefix.length() > 0)
+            {
+                name = prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Check a tar header's checksum: the sum of its bytes, unsigned, with
+     * the checksum field taken as spaces. Some old tars summed signed
+     * bytes, so that's accepted too.
+     */
+    private static void checkTarChecksum(byte[] header)
+            throws IOException
+    {
+        long expected = parseOctal(header, tarChecksumOffset, tarChecksumLength);
+        long unsigned = 0;
+        long signed = 0;
+        for (int i = 0; i < header.length; i++)
+        {
+            int b = ((i >= tarChecksumOffset) &&
+                     (i < tarChecksumOffset + tarChecksumLength)) ?
+                ' ' : header[i];
+            unsigned += b & 0xff;
+            signed += b;
+        }
+        if ((expected != unsigned) && (expected != signed))
+        {
+            throw new IOException("Bad tar header checksum in trust roots");
+        }
+    }
+
+    /**
+     * @return Value of a NUL or space terminated octal field.
+     */
+    private static long parseOctal(byte[] header, int offset, int length)
+            throws IOException
+    {
+        long value = 0;
+        int i = offset;
+        int end = offset + length;
+        while ((i < end) && (header[i] == ' '))
+        {
+            i++;
+        }
+        for (; (i < end) && (header[i] != 0) && (header[i] != ' '); i++)
+        {
+            if ((header[i] < '0') || (header[i] > '7'))
+            {
+                throw new IOException("Bad tar header in trust roots");
+            }
+            value = (value << 3) + (header[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return NUL terminated string field.
+     */
+    private static String string(byte[] header, int offset, int length)
+            throws IOException
+    {
+        int end = offset;
+        while ((end < offset + length) && (header[end] != 0))
+        {
+            end++;
+        }
+        return new String(header, offset, end - offset, "UTF-8");
+    }
+
+    /**
+     * @return size rounded up to a whole number of blocks.
+     */
+    private static long padded(long size)
+    {
+        return (size + tarBlock - 1) / tarBlock * tarBlock;
+    }
+
+    private static boolean isZero(byte[] block)
+    {
+        for (int i = 0; i < block.length; i++)
+        {
+            if (block[i] != 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read a whole block.
+     * @return False if the stream ended before the block started.
+     */
+    private static boolean readBlock(InputStream in, byte[] block)
+            throws IOException
+    {
+        int n = in.read(block, 0, block.length);
+        if (n == -1)
+        {
+            return false;
+        }
+        if (n < block.length)
+        {
+            readFully(in, block, n, block.length - n);
+        }
+        return true;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int length)
+            throws IOException
+    {
+        readFully(in, bytes, 0, length);
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int offset,
+                                  int length)
+            throws IOException
+    {
+        while (length > 0)
+        {
+            int n = in.read(bytes, offset, length);
+            if (n == -1)
+            {
+                throw new EOFException("Trust roots archive truncated");
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private static void skip(InputStream in, long length)
+            throws IOException
+    {
+        while (length > 0)
+        {
+            long n = in.skip(length);
+            if (n <= 0)
+            {
+                if (in.read() == -1)
+                {
+                    throw new EOFException("Trust roots archive truncated");
+                }
+                n = 1;
+            }
+            length -= n;
+        }
+    }
+}
@@ -0,0 +1,679 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+TrustRootsIndexer.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DERBMPString;
+import org.bouncycastle.asn1.DEREncodable;
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.DERPrintableString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERString;
+import org.bouncycastle.asn1.DERT61String;
+import org.bouncycastle.asn1.DERUTF8String;
+import org.bouncycastle.asn1.DERUniversalString;
+import org.bouncycastle.asn1.DERVisibleString;
+
+/**
+ * Indexes a trusted CA directory as OpenSSL's c_rehash does, so Globus and
+ * OpenSSL can find CAs by subject hash without running it: each CA
+ * certificate gets a "hash.N" link, and each CRL a "hash.rN" link, under
+ * both the current (SHA-1 of the canonical name) and the old (MD5 of the
+ * DER name, OpenSSL before 1.0) subject hashes. A CA's signing_policy and
+ * namespaces files get "hash.signing_policy" and "hash.namespaces"
+ * aliases to go with them.
+ *
+ * Files are parsed and hashed in parallel. Links are symbolic, or copies
+ * where the file system can't link. Every name created is recorded in the
+ * TrustRootsManifest, and only those are ever removed, when their target
+ * is gone or no longer has their hash (or, for a copy, has changed). Any
+ * other file or link, e.g. a link the user made into
+ * /etc/grid-security/certificates, is left alone; a hash name it already
+ * holds for the same certificate isn't duplicated. A name we created that
+ * the user has since replaced or edited is forgotten and left alone too.
+ */
+class TrustRootsIndexer
+{
+    /**
+     * A certificate or CRL found in the directory, and its hashes.
+     */
+    private static class Entry
+    {
+        String name;
+        // X509Certificate or X509CRL
+        Object object;
+        boolean crl;
+        String hash;
+        String oldHash;
+    }
+
+    // Files worth parsing: what c_rehash looks at, plus hash names
+    private static final Pattern candidatePattern =
+        Pattern.compile(".*\\.(pem|crt|cer|crl|der|r?[0-9]+)");
+
+    // Names we create: hash.N, hash.rN and policy aliases
+    private static final Pattern indexPattern =
+        Pattern.compile("([0-9a-f]{8})\\.(r?[0-9]+|signing_policy|namespaces)");
+
+    // Files that go with a CA certificate, by suffix
+    private static final String[] policySuffixes =
+    {
+        ".signing_policy", ".namespaces"
+    };
+
+    private File dir;
+    private TrustRootsManifest manifest;
+    private int threads;
+
+    // What indexing did
+    private int certificates = 0;
+    private int crls = 0;
+    private int created = 0;
+    private int removed = 0;
+    private int copied = 0;
+
+    /**
+     * @param dir Trusted CA directory.
+     * @param manifest Manifest of the directory, which records the names
+     * we create; the caller stores it.
+     * @param threads Threads to hash with, 0 or less for one per
+     * processor.
+     */
+    TrustRootsIndexer(File dir, TrustRootsManifest manifest, int threads)
+    {
+        this.dir = dir;
+        this.manifest = manifest;
+        this.threads = (threads > 0) ? threads :
+            Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Bring the directory's hash links up to date.
+     * @throws java.io.IOException
+     */
+    void index()
+            throws IOException
+    {
+        String[] names = this.dir.list();
+        if (names == null)
+        {
+            throw new IOException("Can't list trusted CA directory " + this.dir);
+        }
+        this.certificates = this.crls = 0;
+        this.created = this.removed = this.copied = 0;
+        Set<String> ours = this.checkOurs();
+
+        // Files to parse: certificates and CRLs in the directory, and
+        // what other hash-named links point to, wherever that is
+        List<String> candidates = new ArrayList<String>();
+        List<String> others = new ArrayList<String>();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (ours.contains(names[i]))
+            {
+                continue;
+            }
+            Path path = this.dir.toPath().resolve(names[i]);
+            if (Files.isSymbolicLink(path))
+            {
+                if (indexPattern.matcher(names[i]).matches())
+                {
+                    others.add(names[i]);
+                }
+            } else if (candidatePattern.matcher(names[i]).matches() &&
+                       Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+            {
+                candidates.add(names[i]);
+            }
+        }
+        List<String> all = new ArrayList<String>(candidates);
+        all.addAll(others);
+        Map<String, Entry> parsed = this.parseAll(all);
+
+        // What each name holds; null for something we can't parse
+        Map<String, Object> slots = new HashMap<String, Object>();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (!ours.contains(names[i]))
+            {
+                Entry entry = parsed.get(names[i]);
+                slots.put(names[i], (entry != null) ? entry.object : null);
+            }
+        }
+        Map<String, Entry> entries = new TreeMap<String, Entry>();
+        for (String name : candidates)
+        {
+            if (parsed.containsKey(name))
+            {
+                entries.put(name, parsed.get(name));
+            }
+        }
+        this.removeStale(ours, entries, slots);
+
+        for (Entry entry : entries.values())
+        {
+            if (entry.crl)
+            {
+                this.crls++;
+            } else
+            {
+                this.certificates++;
+            }
+            this.link(entry, entry.hash, slots);
+            this.link(entry, entry.oldHash, slots);
+        }
+    }
+
+    /**
+     * @return Summary of what indexing did, for the debug log.
+     */
+    public String toString()
+    {
+        return this.certificates + " certificates, " + this.crls + " CRLs, " +
+            this.created + " links created" +
+            ((this.copied > 0) ? " (" + this.copied + " as copies)" : "") +
+            ", " + this.removed + " removed, by " + this.threads + " threads";
+    }
+
+    /**
+     * Check the names the manifest says we created are still as we made
+     * them, forgetting any that are gone, have been replaced or edited,
+     * or now hold a trust root from the server.
+     * @return Names we created that are still ours.
+     */
+    private Set<String> checkOurs()
+            throws IOException
+    {
+        Set<String> ours = new HashSet<String>();
+        for (String name : this.manifest.getIndexNames())
+        {
+            Path path = this.dir.toPath().resolve(name);
+            String target = this.manifest.getIndexTarget(name);
+            String copyDigest = this.manifest.getCopyDigest(name);
+            boolean intact;
+            if (this.manifest.contains(name) ||
+                !Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+            {
+                intact = false;
+            } else if (copyDigest == null)
+            {
+                intact = Files.isSymbolicLink(path) &&
+                    Files.readSymbolicLink(path).toString().equals(target);
+            } else
+            {
+                intact = Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS) &&
+                    copyDigest.equals(TrustRootsManifest.digest(path.toFile()));
+            }
+            if (intact)
+            {
+                ours.add(name);
+            } else
+            {
+                this.manifest.removeIndex(name);
+            }
+        }
+        return ours;
+    }
+
+    /**
+     * Parse and hash files on a pool of threads.
+     * @return Name to entry of those that are certificates or CRLs.
+     */
+    private Map<String, Entry> parseAll(List<String> candidates)
+            throws IOException
+    {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        if (candidates.isEmpty())
+        {
+            return entries;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(this.threads, candidates.size()), new ThreadFactory()
+        {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r,
+                    "GridShibCA-indexer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try
+        {
+            List<Future<Entry>> results = new ArrayList<Future<Entry>>();
+            for (final String name : candidates)
+            {
+                results.add(executor.submit(new Callable<Entry>()
+                {
+                    public Entry call()
+                            throws Exception
+                    {
+                        return parse(name);
+                    }
+                }));
+            }
+            for (Future<Entry> result : results)
+            {
+                Entry entry = result.get();
+                if (entry != null)
+                {
+                    entries.put(entry.name, entry);
+                }
+            }
+        } catch (InterruptedException e)
+        {
+            throw new IOException("Interrupted indexing trust roots");
+        } catch (ExecutionException e)
+        {
+            throw new IOException("Error indexing trust roots: " + e.getCause());
+        } finally
+        {
+            executor.shutdownNow();
+        }
+        return entries;
+    }
+
+    /**
+     * Parse and hash a file, following links.
+     * @return Entry, or null if the file isn't a certificate or CRL, or
+     * is a dangling link.
+     */
+    private Entry parse(String name)
+            throws IOException
+    {
+        Path path = this.dir.toPath().resolve(name);
+        if (!Files.isRegularFile(path))
+        {
+            return null;
+        }
+        byte[] data = Files.readAllBytes(path);
+        Entry entry = new Entry();
+        entry.name = name;
+        entry.crl = contains(data, "-----BEGIN X509 CRL".getBytes()) ||
+            name.endsWith(".crl") || name.matches(".*\\.r[0-9]+");
+        X500Principal principal;
+        try
+        {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            if (entry.crl)
+            {
+                X509CRL crl = (X509CRL) factory.generateCRL(
+                        new ByteArrayInputStream(data));
+                principal = crl.getIssuerX500Principal();
+                entry.object = crl;
+            } else
+            {
+                X509Certificate cert = (X509Certificate) factory.generateCertificate(
+                        new ByteArrayInputStream(data));
+                principal = cert.getSubjectX500Principal();
+                entry.object = cert;
+            }
+        } catch (Exception e)
+        {
+            // Not a certificate or CRL; c_rehash skips these too
+            return null;
+        }
+        entry.hash = subjectHash(principal);
+        entry.oldHash = subjectHashOld(principal);
+        return entry;
+    }
+
+    /**
+     * Remove names we created whose target is gone, no longer has their
+     * hash, or, for a copy, has changed since; count the rest as holding
+     * their target's certificate, CRL or policy.
+     */
+    private void removeStale(Set<String> ours, Map<String, Entry> entries,
+                             Map<String, Object> slots)
+            throws IOException
+    {
+        // Policy aliases that go with a CA still here: hash.suffix to
+        // base.suffix of every CA with that hash, as link() gives the
+        // alias to whichever comes first
+        Map<String, Set<String>> aliases = new HashMap<String, Set<String>>();
+        for (Entry entry : entries.values())
+        {
+            if (!entry.crl)
+            {
+                String base = entry.name.substring(0, entry.name.lastIndexOf('.'));
+                for (int i = 0; i < policySuffixes.length; i++)
+                {
+                    addAlias(aliases, entry.hash + policySuffixes[i], base + policySuffixes[i]);
+                    addAlias(aliases, entry.oldHash + policySuffixes[i], base + policySuffixes[i]);
+                }
+            }
+        }
+        for (String name : ours)
+        {
+            String target = this.manifest.getIndexTarget(name);
+            String copyDigest = this.manifest.getCopyDigest(name);
+            File targetFile = new File(this.dir, target);
+            Matcher m = indexPattern.matcher(name);
+            boolean valid = m.matches() && targetFile.isFile();
+            Entry entry = entries.get(target);
+            if (valid && Character.isDigit(m.group(2).charAt(m.group(2).length() - 1)))
+            {
+                valid = (entry != null) &&
+                    (entry.crl == m.group(2).startsWith("r")) &&
+                    (m.group(1).equals(entry.hash) || m.group(1).equals(entry.oldHash));
+            } else if (valid)
+            {
+                valid = aliases.containsKey(name) &&
+                    aliases.get(name).contains(target);
+            }
+            if (valid && (copyDigest != null))
+            {
+                valid = copyDigest.equals(TrustRootsManifest.digest(targetFile));
+            }
+            if (valid)
+            {
+                slots.put(name, (entry != null) ? entry.object : target);
+            } else
+            {
+                Files.delete(this.dir.toPath().resolve(name));
+                this.manifest.removeIndex(name);
+                this.removed++;
+            }
+        }
+    }
+
+    private static void addAlias(Map<String, Set<String>> aliases, String alias,
+                                 String target)
+    {
+        Set<String> targets = aliases.get(alias);
+        if (targets == null)
+        {
+            targets = new HashSet<String>();
+            aliases.put(alias, targets);
+        }
+        targets.add(target);
+    }
+
+    /**
+     * Make sure a file's certificate or CRL is indexed under a hash, in
+     * the first hash.N (or hash.rN) name free unless one holds the same, and
+     * alias its policy files if this is a CA's first name.
+     */
+    private void link(Entry entry, String hash, Map<String, Object> slots)
+            throws IOException
+    {
+        String prefix = hash + (entry.crl ? ".r" : ".");
+        // Names removed as stale can leave gaps, so look at them all
+        String free = null;
+        boolean held = false;
+        for (int n = 0; !held && (n <= slots.size()); n++)
+        {
+            String name = prefix + n;
+            if (!slots.containsKey(name))
+            {
+                if (free == null)
+                {
+                    free = name;
+                }
+            } else
+            {
+                held = entry.object.equals(slots.get(name));
+            }
+        }
+        if (!held)
+        {
+            this.createLink(free, entry.name);
+            slots.put(free, entry.object);
+        }
+        if (entry.crl)
+        {
+            return;
+        }
+        String base = entry.name.substring(0, entry.name.lastIndexOf('.'));
+        if (base.equals(hash))
+        {
+            return;
+        }
+        for (int i = 0; i < policySuffixes.length; i++)
+        {
+            String alias = hash + policySuffixes[i];
+            String target = base + policySuffixes[i];
+            if (!slots.containsKey(alias) &&
+                new File(this.dir, target).isFile())
+            {
+                this.createLink(alias, target);
+                slots.put(alias, target);
+            }
+        }
+    }
+
+    /**
+     * Link name to target in the directory, or copy target where links
+     * aren't supported, and record it in the manifest.
+     */
+    private void createLink(String name, String target)
+            throws IOException
+    {
+        Path link = this.dir.toPath().resolve(name);
+        String copyDigest = null;
+        try
+        {
+            Files.createSymbolicLink(link, Paths.get(target));
+        } catch (UnsupportedOperationException e)
+        {
+            copyDigest = copy(link, target);
+        } catch (FileSystemException e)
+        {
+            if (Files.exists(link, LinkOption.NOFOLLOW_LINKS))
+            {
+                throw e;
+            }
+            // e.g. Windows without the privilege to link
+            copyDigest = copy(link, target);
+        }
+        this.manifest.putIndex(name, target, copyDigest);
+        this.created++;
+    }
+
+    /**
+     * @return Hex SHA-256 digest of the copy.
+     */
+    private String copy(Path link, String target)
+            throws IOException
+    {
+        Files.copy(this.dir.toPath().resolve(target), link);
+        this.copied++;
+        return TrustRootsManifest.digest(link.toFile());
+    }
+
+    /**
+     * OpenSSL's X509_NAME_hash(): the first four bytes, little-endian, of
+     * the SHA-1 of the name's canonical encoding, as used by OpenSSL 1.0
+     * and later and its c_rehash.
+     * @param name Subject or issuer name.
+     * @return Hash as eight hex digits.
+     * @throws java.io.IOException if the name can't be parsed.
+     */
+    static String subjectHash(X500Principal name)
+            throws IOException
+    {
+        return hash("SHA-1", canonicalEncoding(name));
+    }
+
+    /**
+     * OpenSSL's X509_NAME_hash_old(): as subjectHash() but the MD5 of the
+     * DER name, used by OpenSSL before 1.0 and so older Globus.
+     * @param name Subject or issuer name.
+     * @return Hash as eight hex digits.
+     * @throws java.io.IOException
+     */
+    static String subjectHashOld(X500Principal name)
+            throws IOException
+    {
+        return hash("MD5", name.getEncoded());
+    }
+
+    private static String hash(String algorithm, byte[] data)
+            throws IOException
+    {
+        byte[] digest;
+        try
+        {
+            digest = MessageDigest.getInstance(algorithm).digest(data);
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(algorithm + " not available");
+        }
+        long value = (digest[0] & 0xffL) | ((digest[1] & 0xffL) << 8) |
+            ((digest[2] & 0xffL) << 16) | ((digest[3] & 0xffL) << 24);
+        return String.format("%08x", value);
+    }
+
+    /**
+     * The canonical encoding OpenSSL hashes (x509_name_canon()): the DER
+     * of each RDN's SET, without the outer SEQUENCE, with string values
+     * as UTF8String, lower case (ASCII only), trimmed, and with runs of
+     * white space as one space.
+     */
+    static byte[] canonicalEncoding(X500Principal name)
+            throws IOException
+    {
+        ASN1Sequence rdns = (ASN1Sequence) new ASN1InputStream(
+                name.getEncoded()).readObject();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < rdns.size(); i++)
+        {
+            ASN1Set rdn = (ASN1Set) rdns.getObjectAt(i);
+            ASN1EncodableVector avas = new ASN1EncodableVector();
+            for (int j = 0; j < rdn.size(); j++)
+            {
+                ASN1Sequence ava = (ASN1Sequence) rdn.getObjectAt(j);
+                ASN1EncodableVector canonical = new ASN1EncodableVector();
+                canonical.add(ava.getObjectAt(0));
+                canonical.add(canonicalValue(ava.getObjectAt(1)));
+                avas.add(new DERSequence(canonical));
+            }
+            // DERSet sorts multi-valued RDNs as DER (and OpenSSL) do
+            out.write(new DERSet(avas).getEncoded());
+        }
+        return out.toByteArray();
+    }
+
+    private static DEREncodable canonicalValue(DEREncodable value)
+            throws IOException
+    {
+        String s;
+        if ((value instanceof DERUTF8String) ||
+            (value instanceof DERPrintableString) ||
+            (value instanceof DERIA5String) ||
+            (value instanceof DERVisibleString) ||
+            (value instanceof DERBMPString))
+        {
+            s = ((DERString) value).getString();
+        } else if (value instanceof DERT61String)
+        {
+            // OpenSSL takes T61String as Latin-1
+            s = new String(((DERT61String) value).getOctets(), "ISO-8859-1");
+        } else if (value instanceof DERUniversalString)
+        {
+            s = new String(((DERUniversalString) value).getOctets(), "UTF-32BE");
+        } else
+        {
+            // Other types are hashed as they are
+            return value;
+        }
+        int start = 0;
+        int end = s.length();
+        while ((start < end) && isSpace(s.charAt(start)))
+        {
+            start++;
+        }
+        while ((end > start) && isSpace(s.charAt(end - 1)))
+        {
+            end--;
+        }
+        StringBuilder canonical = new StringBuilder(end - start);
+        for (int i = start; i < end; i++)
+        {
+            char c = s.charAt(i);
+            if (isSpace(c))
+            {
+                canonical.append(' ');
+                while (isSpace(s.charAt(i + 1)))
+                {
+                    i++;
+                }
+            } else if ((c >= 'A') && (c <= 'Z'))
+            {
+                canonical.append((char) (c + ('a' - 'A')));
+            } else
+            {
+                canonical.append(c);
+            }
+        }
+        return new DERUTF8String(canonical.toString());
+    }
+
+    /**
+     * @return True for the characters C's isspace() takes as white space.
+     */
+    private static boolean isSpace(char c)
+    {
+        return (c == ' ') || ((c >= '\t') && (c <= '\r'));
+    }
+
+    private static boolean contains(byte[] data, byte[] pattern)
+    {
+        outer:
+        for (int i = 0; i + pattern.length <= data.length; i++)
+        {
+            for (int j = 0; j < pattern.length; j++)
+            {
+                if (data[i + j] != pattern[j])
+                {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,392 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+TrustRootsManifest.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Record of the trust root files we have written to the user's trusted CA
+ * directory: the SHA-256 digest of each as we wrote it, and the server's
+ * ETag for the set of files it last sent us. This lets a TrustRoots request
+ * ask for only what changed, and tells files we wrote, which we may update,
+ * from ones that were there already, which we leave alone.
+ *
+ * It also records the subject hash links (or copies) TrustRootsIndexer
+ * created, with their targets, so it only ever removes its own.
+ *
+ * Stored as a properties file, written by replacing the old one so a crash
+ * can't leave it half written.
+ */
+class TrustRootsManifest
+{
+    // Property holding the server's ETag
+    private static final String etagKey = "ETag";
+
+    // Prefix of properties holding file digests
+    private static final String digestPrefix = "digest.";
+
+    // Prefixes of properties holding the targets of index names we
+    // created, and the digests of those that are copies
+    private static final String indexPrefix = "index.";
+    private static final String copyPrefix = "copy.";
+
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+    // Where the manifest is stored
+    private File file;
+
+    // Server's ETag, or null
+    private String etag = null;
+
+    // File names to hex digests, sorted for a stable digest list
+    private Map<String, String> digests = new TreeMap<String, String>();
+
+    // Index names we created to their targets, and of those that are
+    // copies to their digests
+    private Map<String, String> indexTargets = new TreeMap<String, String>();
+    private Map<String, String> copyDigests = new TreeMap<String, String>();
+
+    private TrustRootsManifest(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Read a manifest. A missing or unreadable manifest is treated as
+     * empty, so all files are fetched again.
+     * @param file Manifest file.
+     * @return Manifest.
+     */
+    static TrustRootsManifest load(File file)
+    {
+        TrustRootsManifest manifest = new TrustRootsManifest(file);
+        if (!file.exists())
+        {
+            return manifest;
+        }
+        Properties properties = new Properties();
+        try
+        {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try
+            {
+                properties.load(in);
+            } finally
+            {
+                in.close();
+            }
+        } catch (IOException e)
+        {
+            GridShibCAClientLogger.debugMessage("Ignoring unreadable trust roots manifest " +
+                    file + ": " + e.getMessage());
+            return manifest;
+        }
+        manifest.etag = properties.getProperty(etagKey);
+        for (String key : properties.stringPropertyNames())
+        {
+            if (key.startsWith(digestPrefix))
+            {
+                manifest.digests.put(key.substring(digestPrefix.length()),
+                        properties.getProperty(key));
+            } else if (key.startsWith(indexPrefix))
+            {
+                manifest.indexTargets.put(key.substring(indexPrefix.length()),
+                        properties.getProperty(key));
+            } else if (key.startsWith(copyPrefix))
+            {
+                manifest.copyDigests.put(key.substring(copyPrefix.length()),
+                        properties.getProperty(key));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Write the manifest.
+     * @throws java.io.IOException
+     */
+    void store()
+            throws IOException
+    {
+        Properties properties = new Properties();
+        if (this.etag != null)
+        {
+            properties.setProperty(etagKey, this.etag);
+        }
+        for (Map.Entry<String, String> entry : this.digests.entrySet())
+        {
+            properties.setProperty(digestPrefix + entry.getKey(),
+                    entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : this.indexTargets.entrySet())
+        {
+            properties.setProperty(indexPrefix + entry.getKey(),
+                    entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : this.copyDigests.entrySet())
+        {
+            properties.setProperty(copyPrefix + entry.getKey(),
+                    entry.getValue());
+        }
+        File tempFile = File.createTempFile("." + this.file.getName() + ".",
+                ".tmp", this.file.getAbsoluteFile().getParentFile());
+        try
+        {
+            OutputStream out = new FileOutputStream(tempFile);
+            try
+            {
+                properties.store(out, "GridShib-CA trust roots");
+            } finally
+            {
+                out.close();
+            }
+            replace(tempFile, this.file);
+        } finally
+        {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Drop files that are missing or no longer as we wrote them, so they
+     * are fetched again, or left alone if the user changed them. The ETag
+     * is dropped too if any file was, as it no longer describes what we
+     * have.
+     * @param dir Trusted CA directory.
+     * @return Names of files dropped.
+     */
+    List<String> verify(File dir)
+    {
+        List<String> dropped = new ArrayList<String>();
+        Iterator<Map.Entry<String, String>> entries =
+            this.digests.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            Map.Entry<String, String> entry = entries.next();
+            File file = new File(dir, entry.getKey());
+            String digest = null;
+            try
+            {
+                digest = file.isFile() ? digest(file) : null;
+            } catch (IOException e)
+            {
+                // Treat as missing
+            }
+            if (!entry.getValue().equals(digest))
+            {
+                dropped.add(entry.getKey());
+                entries.remove();
+            }
+        }
+        if (!dropped.isEmpty())
+        {
+            this.etag = null;
+        }
+        return dropped;
+    }
+
+    /**
+     * @return Server's ETag for the files we have, or null.
+     */
+    String getETag()
+    {
+        return this.etag;
+    }
+
+    /**
+     * @param etag Server's ETag for the files we have, or null.
+     */
+    void setETag(String etag)
+    {
+        this.etag = etag;
+    }
+
+    /**
+     * @return True if we wrote the named file.
+     */
+    boolean contains(String name)
+    {
+        return this.digests.containsKey(name);
+    }
+
+    /**
+     * Record a file as written by us.
+     * @param name File name.
+     * @param digest Hex SHA-256 digest of its contents.
+     */
+    void put(String name, String digest)
+    {
+        this.digests.put(name, digest);
+    }
+
+    /**
+     * @return Number of files recorded.
+     */
+    int size()
+    {
+        return this.digests.size();
+    }
+
+    /**
+     * @return Index names we created.
+     */
+    List<String> getIndexNames()
+    {
+        return new ArrayList<String>(this.indexTargets.keySet());
+    }
+
+    /**
+     * @return Target of an index name we created, or null.
+     */
+    String getIndexTarget(String name)
+    {
+        return this.indexTargets.get(name);
+    }
+
+    /**
+     * @return Hex SHA-256 digest of an index name we created as a copy,
+     * or null if it is a link.
+     */
+    String getCopyDigest(String name)
+    {
+        return this.copyDigests.get(name);
+    }
+
+    /**
+     * Record an index name as created by us.
+     * @param name Name created.
+     * @param target File it links to or copies.
+     * @param copyDigest Hex SHA-256 digest if it is a copy, null if it is
+     * a link.
+     */
+    void putIndex(String name, String target, String copyDigest)
+    {
+        this.indexTargets.put(name, target);
+        if (copyDigest != null)
+        {
+            this.copyDigests.put(name, copyDigest);
+        } else
+        {
+            this.copyDigests.remove(name);
+        }
+    }
+
+    /**
+     * Forget an index name, which we then leave alone.
+     */
+    void removeIndex(String name)
+    {
+        this.indexTargets.remove(name);
+        this.copyDigests.remove(name);
+    }
+
+    /**
+     * @return Files and digests in the form the TrustRoots command takes,
+     * one "name digest" per line.
+     */
+    String toDigestList()
+    {
+        StringBuilder list = new StringBuilder();
+        for (Map.Entry<String, String> entry : this.digests.entrySet())
+        {
+            list.append(entry.getKey()).append(' ')
+                .append(entry.getValue()).append('\n');
+        }
+        return list.toString();
+    }
+
+    /**
+     * @return New SHA-256 MessageDigest.
+     */
+    static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e)
+        {
+            // Every JRE has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return Hex SHA-256 digest of a file's contents.
+     * @throws java.io.IOException
+     */
+    static String digest(File file)
+            throws IOException
+    {
+        MessageDigest md = newDigest();
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+            {
+                md.update(buffer, 0, n);
+            }
+        } finally
+        {
+            in.close();
+        }
+        return hex(md.digest());
+    }
+
+    /**
+     * @return bytes as lower case hex.
+     */
+    static String hex(byte[] bytes)
+    {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            chars[2 * i] = hexDigits[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = hexDigits[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Move source over target, atomically where the file system can.
+     * @throws java.io.IOException
+     */
+    static void replace(File source, File target)
+            throws IOException
+    {
+        try
+        {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
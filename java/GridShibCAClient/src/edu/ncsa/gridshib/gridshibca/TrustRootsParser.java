@@ -0,0 +1,306 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+TrustRootsParser.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Parses the TrustRoots response: files, each introduced by a
+ * "-----File: name" line, and "-----Unchanged: name" lines for files the
+ * client already has.
+ *
+ * The stream is scanned as bytes in one reusable buffer; file contents are
+ * handed to the Handler as ranges of that buffer, as many lines at a time
+ * as the buffer holds, so nothing is allocated per line. Contents come out
+ * as BufferedReader.readLine() would have split them, with every line,
+ * including the last, ending in "\n" alone. (A lone "\r" is not treated as
+ * a line end; the server never sends one.)
+ */
+class TrustRootsParser
+{
+    /**
+     * Receives what the parser finds.
+     */
+    interface Handler
+    {
+        /**
+         * Start of a file's contents.
+         * @param name File name as sent, trimmed.
+         * @throws java.io.IOException
+         */
+        void startFile(String name) throws IOException;
+
+        /**
+         * Some of the current file's contents. The buffer is reused once
+         * this returns, so its contents must be consumed or copied.
+         * @param data Contents from its position to its limit.
+         * @throws java.io.IOException
+         */
+        void data(ByteBuffer data) throws IOException;
+
+        /**
+         * End of the current file's contents.
+         * @throws java.io.IOException
+         */
+        void endFile() throws IOException;
+
+        /**
+         * A file the server says we already have.
+         * @param name File name as sent, trimmed.
+         */
+        void unchanged(String name);
+    }
+
+    private static final byte[] filePrefix = "-----File:".getBytes();
+    private static final byte[] unchangedPrefix = "-----Unchanged:".getBytes();
+    private static final Charset nameCharset = Charset.forName("UTF-8");
+
+    // Handed to the Handler in place of "\r\n"
+    private ByteBuffer newline = ByteBuffer.wrap(new byte[] { '\n' });
+
+    private ByteBuffer buffer;
+
+    private Handler handler;
+
+    // Whether we're in a file's contents
+    private boolean inFile = false;
+
+    /**
+     * @param handler Handler for what's found.
+     * @param bufferSize Bytes to read at a time. Lines longer than this are
+     * fine in contents but "-----" lines must fit.
+     */
+    TrustRootsParser(Handler handler, int bufferSize)
+    {
+        this.handler = handler;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * @param handler Handler for what's found.
+     */
+    TrustRootsParser(Handler handler)
+    {
+        this(handler, 64 * 1024);
+    }
+
+    /**
+     * Parse a whole response.
+     * @param in Response to parse; not closed.
+     * @throws java.io.IOException
+     */
+    void parse(InputStream in)
+            throws IOException
+    {
+        ReadableByteChannel channel = Channels.newChannel(in);
+        byte[] bytes = this.buffer.array();
+        ByteBuffer view = this.buffer.duplicate();
+        // Buffer's methods are called through Buffer throughout, as
+        // ByteBuffer only overrides them from Java 9 on
+        ((Buffer) this.buffer).clear();
+        // Bytes [0, end) of the buffer are valid, up to lineStart parsed
+        int end = 0;
+        int lineStart = 0;
+        // Start of contents not yet handed over, or -1
+        int runStart = -1;
+        // Whether lineStart is partway through a line longer than the buffer
+        boolean continuation = false;
+        boolean eof = false;
+        while (true)
+        {
+            // Find the end of the line starting at lineStart
+            int lineEnd = indexOf(bytes, (byte) '\n', lineStart, end);
+            if ((lineEnd < 0) && !eof && ((lineStart > 0) || (end < bytes.length)))
+            {
+                // Hand over the contents we have, then shift the partial
+                // line down and read more
+                if (runStart >= 0)
+                {
+                    this.data(view, runStart, lineStart);
+                }
+                runStart = -1;
+                System.arraycopy(bytes, lineStart, bytes, 0, end - lineStart);
+                end -= lineStart;
+                lineStart = 0;
+                ((Buffer) this.buffer).limit(bytes.length);
+                ((Buffer) this.buffer).position(end);
+                eof = (channel.read(this.buffer) == -1);
+                end = this.buffer.position();
+                continue;
+            }
+            if (lineStart == end)
+            {
+                // Everything parsed; a last line continued from earlier
+                // reads still needs its "\n"
+                if (continuation && this.inFile)
+                {
+                    this.newline();
+                }
+                break;
+            }
+            // A line longer than the buffer, or the last line with no "\n"
+            boolean partial = (lineEnd < 0);
+            if (partial)
+            {
+                lineEnd = end;
+            }
+            // Where the next line, or the rest of this one, starts
+            int next = partial ? end : lineEnd + 1;
+            if ((!partial || eof) && !continuation &&
+                isHeader(bytes, lineStart, lineEnd))
+            {
+                if (runStart >= 0)
+                {
+                    this.data(view, runStart, lineStart);
+                    runStart = -1;
+                }
+                this.header(bytes, lineStart, lineEnd);
+            } else if (this.inFile)
+            {
+                if (runStart < 0)
+                {
+                    runStart = lineStart;
+                }
+                if (partial)
+                {
+                    // Hand it over as it is; the rest follows next read.
+                    // A "\r" at the end is kept back, as "\n" may follow.
+                    if (!eof && (lineEnd - 1 > lineStart) &&
+                        (bytes[lineEnd - 1] == '\r'))
+                    {
+                        next = --lineEnd;
+                    }
+                    this.data(view, runStart, lineEnd);
+                    runStart = -1;
+                    if (eof)
+                    {
+                        this.newline();
+                    }
+                } else if ((lineEnd > lineStart) && (bytes[lineEnd - 1] == '\r'))
+                {
+                    this.data(view, runStart, lineEnd - 1);
+                    this.newline();
+                    runStart = -1;
+                }
+            }
+            lineStart = next;
+            continuation = partial && !eof;
+        }
+        if (runStart >= 0)
+        {
+            this.data(view, runStart, end);
+        }
+        if (this.inFile)
+        {
+            this.inFile = false;
+            this.handler.endFile();
+        }
+    }
+
+    /**
+     * Hand bytes [from, to) of the buffer to the handler.
+     */
+    private void data(ByteBuffer view, int from, int to)
+            throws IOException
+    {
+        if (to > from)
+        {
+            ((Buffer) view).limit(to);
+            ((Buffer) view).position(from);
+            this.handler.data(view);
+        }
+    }
+
+    /**
+     * Hand a "\n" to the handler.
+     */
+    private void newline()
+            throws IOException
+    {
+        ((Buffer) this.newline).clear();
+        this.handler.data(this.newline);
+    }
+
+    /**
+     * @return True if bytes [from, to) are a "-----File:" or
+     * "-----Unchanged:" line.
+     */
+    private static boolean isHeader(byte[] bytes, int from, int to)
+    {
+        return startsWith(bytes, from, to, filePrefix) ||
+            startsWith(bytes, from, to, unchangedPrefix);
+    }
+
+    /**
+     * Handle a header line in bytes [from, to).
+     */
+    private void header(byte[] bytes, int from, int to)
+            throws IOException
+    {
+        if (startsWith(bytes, from, to, filePrefix))
+        {
+            if (this.inFile)
+            {
+                this.handler.endFile();
+            }
+            this.inFile = true;
+            this.handler.startFile(name(bytes, from + filePrefix.length, to));
+        } else
+        {
+            // Contents of the file before this, if any, are complete
+            if (this.inFile)
+            {
+                this.inFile = false;
+                this.handler.endFile();
+            }
+            this.handler.unchanged(
+                name(bytes, from + unchangedPrefix.length, to));
+        }
+    }
+
+    private static String name(byte[] bytes, int from, int to)
+    {
+        return new String(bytes, from, to - from, nameCharset).trim();
+    }
+
+    private static boolean startsWith(byte[] bytes, int from, int to,
+                                      byte[] prefix)
+    {
+        if (to - from < prefix.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (bytes[from + i] != prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            if (bytes[i] == b)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,411 @@
+package edu.ncsa.gridshib.gridshibca;
+/*
+TrustRootsWritePipeline.java
+
+This file is part of the GridShib-CA distribution.
+
+Copyright 2006-2010 The Board of Trustees of the University of Illinois.
+Please see LICENSE at the root of the distribution.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the trust roots TrustRootsParser finds using a small pool of
+ * writer threads, so the slow file creates and renames of a networked
+ * home directory (NFS, AFS) overlap each other and reading the response.
+ *
+ * The parser's thread collects each file's contents and queues them; each
+ * writer writes a file to a temporary file and moves it into place. The
+ * queue is bounded by bytes as well as files, so if the writers fall
+ * behind the reader waits rather than buffering the whole response. Call
+ * finish() once parsing is done to wait for the writers, or abort() if it
+ * failed.
+ */
+class TrustRootsWritePipeline
+        implements TrustRootsParser.Handler
+{
+    /**
+     * A complete trust root waiting to be written.
+     */
+    private static class PendingFile
+    {
+        String name;
+        byte[] data = new byte[4096];
+        int length = 0;
+
+        // Bytes of queue budget held
+        int permits = 0;
+
+        PendingFile(String name)
+        {
+            this.name = name;
+        }
+
+        void append(ByteBuffer buffer)
+        {
+            int n = buffer.remaining();
+            if (this.length + n > this.data.length)
+            {
+                byte[] grown = new byte[Math.max(this.data.length * 2,
+                                                 this.length + n)];
+                System.arraycopy(this.data, 0, grown, 0, this.length);
+                this.data = grown;
+            }
+            buffer.get(this.data, this.length, n);
+            this.length += n;
+        }
+    }
+
+    // Queued to tell a writer to stop
+    private static final PendingFile end = new PendingFile(null);
+
+    // Most files waiting to be written
+    private static final int maxQueuedFiles = 64;
+
+    private File trustedCAPath;
+    private TrustRootsManifest manifest;
+
+    private BlockingQueue<PendingFile> queue =
+        new LinkedBlockingQueue<PendingFile>(maxQueuedFiles);
+
+    // Bytes that may wait in the queue
+    private int maxQueuedBytes;
+    private Semaphore queuedBytes;
+
+    private ExecutorService executor;
+    private List<Future<Void>> writers = new ArrayList<Future<Void>>();
+
+    // File being read, or null if none or it is being skipped
+    private PendingFile current = null;
+
+    // First error writing, after which the rest are skipped
+    private volatile IOException failure = null;
+
+    // Files received and listed as unchanged, counted by the reader
+    private int received = 0;
+    private int unchanged = 0;
+
+    // What the writers did
+    private AtomicInteger written = new AtomicInteger();
+    private AtomicInteger updated = new AtomicInteger();
+    private AtomicInteger skipped = new AtomicInteger();
+
+    /**
+     * Start the writers.
+     * @param trustedCAPath Directory to write trust roots to.
+     * @param manifest Trust roots we have written, updated as we write.
+     * @param threads Number of writer threads.
+     * @param maxQueuedBytes Bytes of file contents that may wait to be
+     * written; a larger file waits for the queue to empty.
+     */
+    TrustRootsWritePipeline(File trustedCAPath, TrustRootsManifest manifest,
+                            int threads, int maxQueuedBytes)
+    {
+        this.trustedCAPath = trustedCAPath;
+        this.manifest = manifest;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.queuedBytes = new Semaphore(maxQueuedBytes);
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory()
+        {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r,
+                    "GridShibCA-writer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int i = 0; i < threads; i++)
+        {
+            this.writers.add(this.executor.submit(new Callable<Void>()
+            {
+                public Void call()
+                        throws InterruptedException
+                {
+                    runWriter();
+                    return null;
+                }
+            }));
+        }
+    }
+
+    public void startFile(String name)
+    {
+        this.received++;
+        // Only the last component is used; one that would name the
+        // directory itself, or nothing, can't be written
+        String last = name.substring(Math.max(name.lastIndexOf('/'),
+                name.lastIndexOf(File.separatorChar)) + 1);
+        if (last.equals("") || last.equals(".") || last.equals(".."))
+        {
+            GridShibCAClientLogger.debugMessage("Skipping trust root with bad name \"" +
+                    name + "\"");
+            this.skipped.incrementAndGet();
+            this.current = null;
+            return;
+        }
+        this.current = new PendingFile(name);
+    }
+
+    public void data(ByteBuffer data)
+    {
+        if (this.current != null)
+        {
+            this.current.append(data);
+        }
+    }
+
+    public void endFile()
+            throws IOException
+    {
+        PendingFile file = this.current;
+        this.current = null;
+        if (file == null)
+        {
+            return;
+        }
+        if (this.failure != null)
+        {
+            throw this.failure;
+        }
+        file.permits = Math.min(file.length, this.maxQueuedBytes);
+        try
+        {
+            this.queuedBytes.acquire(file.permits);
+            this.queue.put(file);
+        } catch (InterruptedException e)
+        {
+            throw new IOException("Interrupted writing trust roots");
+        }
+    }
+
+    public void unchanged(String name)
+    {
+        GridShibCAClientLogger.debugMessage("File " + name + " unchanged.");
+        this.unchanged++;
+    }
+
+    /**
+     * Wait for all queued files to be written.
+     * @throws java.io.IOException if any file couldn't be written.
+     */
+    void finish()
+            throws IOException
+    {
+        stopWriters();
+        if (this.failure != null)
+        {
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Stop after files already being written, dropping the rest.
+     */
+    void abort()
+    {
+        if (this.failure == null)
+        {
+            this.failure = new IOException("Trust roots download failed");
+        }
+        this.queue.clear();
+        try
+        {
+            stopWriters();
+        } catch (IOException e)
+        {
+            // Already failed
+        }
+    }
+
+    /**
+     * @return Files received.
+     */
+    int getReceived()
+    {
+        return this.received;
+    }
+
+    /**
+     * @return Files the server listed as unchanged.
+     */
+    int getUnchanged()
+    {
+        return this.unchanged;
+    }
+
+    /**
+     * @return Files written, new or updated.
+     */
+    int getWritten()
+    {
+        return this.written.get() + this.updated.get();
+    }
+
+    /**
+     * @return Summary of what the writers did, for the debug log.
+     */
+    public String toString()
+    {
+        return this.written + " new, " + this.updated + " updated, " +
+            this.skipped + " skipped, by " + this.writers.size() + " writers";
+    }
+
+    /**
+     * Tell the writers to stop once the queue is empty, and wait for them.
+     */
+    private void stopWriters()
+            throws IOException
+    {
+        try
+        {
+            for (int i = 0; i < this.writers.size(); i++)
+            {
+                this.queue.put(end);
+            }
+            for (Future<Void> writer : this.writers)
+            {
+                writer.get();
+            }
+        } catch (InterruptedException e)
+        {
+            throw new IOException("Interrupted writing trust roots");
+        } catch (ExecutionException e)
+        {
+            throw new IOException("Error writing trust roots: " + e.getCause());
+        } finally
+        {
+            this.executor.shutdown();
+        }
+    }
+
+    /**
+     * Write files from the queue until told to stop. After a failure files
+     * are still taken from the queue, so the reader never waits forever.
+     */
+    private void runWriter()
+            throws InterruptedException
+    {
+        while (true)
+        {
+            PendingFile file = this.queue.take();
+            if (file == end)
+            {
+                return;
+            }
+            try
+            {
+                if (this.failure == null)
+                {
+                    write(file);
+                }
+            } catch (IOException e)
+            {
+                fail(file, e);
+            } catch (RuntimeException e)
+            {
+                fail(file, new IOException(e.toString()));
+            } finally
+            {
+                this.queuedBytes.release(file.permits);
+            }
+        }
+    }
+
+    private void fail(PendingFile file, IOException e)
+    {
+        GridShibCAClientLogger.debugMessage("Error writing " + file.name +
+                ": " + e.getMessage());
+        if (this.failure == null)
+        {
+            this.failure = e;
+        }
+    }
+
+    /**
+     * Write a trust root to a temporary file and move it into place,
+     * unless a file we didn't write is already there. If that file is
+     * the same as ours we take it over, so later changes to it are picked
+     * up.
+     */
+    private void write(PendingFile pending)
+            throws IOException
+    {
+        File file = new File(this.trustedCAPath, new File(pending.name).getName());
+        String name = file.getName();
+        MessageDigest md = TrustRootsManifest.newDigest();
+        md.update(pending.data, 0, pending.length);
+        String digest = TrustRootsManifest.hex(md.digest());
+        boolean ours;
+        synchronized (this.manifest)
+        {
+            ours = this.manifest.contains(name);
+        }
+        boolean exists = file.exists();
+        if (exists && !ours)
+        {
+            if (digest.equals(TrustRootsManifest.digest(file)))
+            {
+                GridShibCAClientLogger.debugMessage("File " + file + " already up to date.");
+                synchronized (this.manifest)
+                {
+                    this.manifest.put(name, digest);
+                }
+            } else
+            {
+                GridShibCAClientLogger.debugMessage("File " + file + " already exists. Skipping.");
+            }
+            this.skipped.incrementAndGet();
+            return;
+        }
+        GridShibCAClientLogger.debugMessage((exists ? "Updating " : "Writing ") + file);
+        File tempFile = File.createTempFile("." + name + ".", ".tmp",
+                this.trustedCAPath);
+        try
+        {
+            FileChannel channel = FileChannel.open(tempFile.toPath(),
+                    StandardOpenOption.WRITE);
+            try
+            {
+                ByteBuffer buffer = ByteBuffer.wrap(pending.data, 0, pending.length);
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer);
+                }
+            } finally
+            {
+                channel.close();
+            }
+            TrustRootsManifest.replace(tempFile, file);
+        } finally
+        {
+            tempFile.delete();
+        }
+        synchronized (this.manifest)
+        {
+            this.manifest.put(name, digest);
+        }
+        (exists ? this.updated : this.written).incrementAndGet();
+    }
+}